@@ -1,7 +1,10 @@
 package com.clearedgeit.accumulo.flume;
 
+import java.io.IOException;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.accumulo.core.client.AccumuloException;
 import org.apache.accumulo.core.client.AccumuloSecurityException;
@@ -10,7 +13,10 @@ import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.flume.Channel;
 import org.apache.flume.Context;
 import org.apache.flume.Event;
@@ -20,13 +26,33 @@ import org.apache.flume.Transaction;
 import org.apache.flume.conf.Configurable;
 import org.apache.flume.instrumentation.SinkCounter;
 import org.apache.flume.sink.AbstractSink;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 
 /**
  * An Accumulo sink for flume-ng. For each event it processes, it gets a list of mutations from a configurable AccumuloEventSerializer.
+ * 
+ * Optionally, the sink tracks the most frequent row IDs it writes. Hot rows are published over JMX, and when salting is enabled, mutations for a hot row are
+ * spread round robin across saltBuckets rows named [bucket]_[rowID], with the bucket zero padded to the width of saltBuckets - 1. When a row is switched to
+ * salted keys, a flume_salt:buckets entry holding the number of buckets is written to the original row, so readers know to also scan the salted rows. The entry
+ * has an empty visibility, so every reader of the row can see it, and it is written again if the batch carrying it is rolled back.
+ * 
+ * If accumulo.bulk.directory is set, the sink runs in bulk mode: instead of using a BatchWriter, each batch is written out as RFiles by a BulkIngestWriter
+ * before the transaction is committed, and the files are bulk imported periodically.
+ * 
+ * When event time extraction is configured and the serializer is an EventTimeAccumuloEventSerializer, the sink tracks the lag between each event's time and
+ * the time its batch was committed, along with the latest committed event time as a watermark. In bulk mode, committed means spilled to the bulk directory;
+ * the events are not visible in the table until the next import.
+ * 
+ * With a BatchWriter, the sink tracks the bytes recently handed to the writer and how long addMutations blocks. If accumulo.maxThrottle is set, it pauses
+ * between transactions once the writer has blocked and is filling up, rather than blocking in addMutations with a transaction open. If
+ * accumulo.adaptiveMemory is true, the writer is replaced between transactions with one whose memory matches the observed throughput, within
+ * accumulo.minMemory and accumulo.maxMemoryHeapFraction of the heap. The old writer is closed, and so flushed, before anything is added to the new one.
  */
 
 public class AccumuloSink extends AbstractSink implements Configurable {
@@ -46,9 +72,27 @@ public class AccumuloSink extends AbstractSink implements Configurable {
   
   private Connector conn = null;
   private BatchWriter writer;
+  private String bulkDirectory;
+  private long bulkImportInterval;
+  private long bulkImportBytes;
+  private BulkIngestWriter bulkWriter;
+  private WriterMemoryController memoryController;
   private long batchSize;
   
   private SinkCounter sinkCounter;
+  private AccumuloSinkMetrics metrics;
+  private boolean trackEventTime;
+  private long[] eventTimes;
+  
+  private HotRowTracker hotRowTracker;
+  private double hotRowThreshold;
+  private long hotRowMinMutations;
+  private int saltBuckets;
+  private String saltFormat;
+  private long saltCounter = 0;
+  private Set<String> saltedRows = new HashSet<String>();
+  // rows switched to salted keys in the current batch, only added to saltedRows once the marker is committed
+  private Set<String> pendingSaltedRows = new HashSet<String>();
   
   static private Logger logger = LoggerFactory.getLogger(AccumuloSink.class);
   
@@ -94,6 +138,12 @@ public class AccumuloSink extends AbstractSink implements Configurable {
     
     this.maxWriteThreads = context.getInteger(AccumuloSinkConfigurationConstants.CONFIG_MAX_WRITE_THREADS, 2);
     
+    this.bulkDirectory = context.getString(AccumuloSinkConfigurationConstants.CONFIG_BULK_DIRECTORY);
+    
+    this.bulkImportInterval = context.getLong(AccumuloSinkConfigurationConstants.CONFIG_BULK_IMPORT_INTERVAL, 300000L);
+    
+    this.bulkImportBytes = context.getLong(AccumuloSinkConfigurationConstants.CONFIG_BULK_IMPORT_BYTES, 268435456L);
+    
     // Initialize the event serializer
     logger.info("Using serializer: " + this.serializerClass);
     
@@ -113,6 +163,45 @@ public class AccumuloSink extends AbstractSink implements Configurable {
       throw new FlumeException("IllegalAccessException while creating serializer", e);
     }
     
+    // Initialize the BatchWriter memory controller
+    this.memoryController = null;
+    if (this.bulkDirectory == null) {
+      boolean adaptive = context.getBoolean(AccumuloSinkConfigurationConstants.CONFIG_ADAPTIVE_MEMORY, false);
+      long minMemory = context.getLong(AccumuloSinkConfigurationConstants.CONFIG_MIN_MEMORY, this.maxMemory);
+      double heapFraction = parseDouble(context, AccumuloSinkConfigurationConstants.CONFIG_MAX_MEMORY_HEAP_FRACTION, "0.25");
+      double throttleThreshold = parseDouble(context, AccumuloSinkConfigurationConstants.CONFIG_THROTTLE_THRESHOLD, "0.8");
+      long maxThrottle = context.getLong(AccumuloSinkConfigurationConstants.CONFIG_MAX_THROTTLE, 0L);
+      long maxHeapMemory = (long) (Runtime.getRuntime().maxMemory() * heapFraction);
+      this.memoryController = new WriterMemoryController(this.maxMemory, minMemory, maxHeapMemory, this.maxLatency, adaptive, throttleThreshold, maxThrottle);
+    }
+    
+    // Initialize hot row tracking
+    int topN = context.getInteger(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_TOP_N, 10);
+    this.metrics = new AccumuloSinkMetrics(this.getName(), topN);
+    this.metrics.setMemoryController(this.memoryController);
+    if (this.serializer instanceof SchemaAccumuloEventSerializer) {
+      this.metrics.setSchemaSerializer((SchemaAccumuloEventSerializer) this.serializer);
+    }
+    this.metrics.setLagWindow(context.getLong(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_LAG_WINDOW, 60000L));
+    this.trackEventTime = EventTimestampExtractor.isConfigured(context) && this.serializer instanceof EventTimeAccumuloEventSerializer;
+    if (EventTimestampExtractor.isConfigured(context) && !this.trackEventTime) {
+      logger.warn(this.serializer.getClass().getName() + " does not report event times, so event time lag is not tracked");
+    }
+    this.eventTimes = this.trackEventTime ? new long[(int) this.batchSize] : null;
+    this.hotRowTracker = null;
+    if (context.getBoolean(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_ENABLED, false)) {
+      int capacity = context.getInteger(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_CAPACITY, 1000);
+      long window = context.getLong(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_WINDOW, 1000000L);
+      this.hotRowTracker = new HotRowTracker(capacity, window);
+      this.metrics.setHotRowTracker(this.hotRowTracker);
+      
+      this.hotRowThreshold = parseDouble(context, AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_THRESHOLD, "0.1");
+      this.hotRowMinMutations = context.getLong(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_MIN_MUTATIONS, 1000L);
+      this.saltBuckets = context.getInteger(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_SALT_BUCKETS, 0);
+      this.saltFormat = "%0" + Integer.toString(Math.max(this.saltBuckets - 1, 1)).length() + "d_%s";
+      logger.info("Tracking hot rows, salting into " + this.saltBuckets + " buckets");
+    }
+    
     this.sinkCounter = new SinkCounter(this.getName());
   }
   
@@ -126,7 +215,13 @@ public class AccumuloSink extends AbstractSink implements Configurable {
         ZooKeeperInstance inst = new ZooKeeperInstance(this.instance, this.zkServers);
         this.conn = inst.getConnector(this.user, this.password.getBytes());
       }
-      this.writer = this.conn.createBatchWriter(this.tableName, this.maxMemory, this.maxLatency, this.maxWriteThreads);
+      if (this.bulkDirectory != null) {
+        logger.info("Bulk ingesting through " + this.bulkDirectory);
+        this.bulkWriter = createBulkIngestWriter(this.conn, this.tableName, new Path(this.bulkDirectory), this.bulkImportInterval, this.bulkImportBytes);
+        this.bulkWriter.start();
+      } else {
+        this.writer = createBatchWriter(this.maxMemory);
+      }
       
     } catch (TableNotFoundException e) {
       logger.error("Could not connect to table, " + this.tableName);
@@ -137,8 +232,12 @@ public class AccumuloSink extends AbstractSink implements Configurable {
     } catch (AccumuloSecurityException e) {
       logger.error("AccumuloSecurityException encoutered. Couldn't connect to Accumulo");
       throw new FlumeException("AccumuloSecurityException encoutered. Couldn't connect to Accumulo", e);
+    } catch (IOException e) {
+      logger.error("IOException encountered while setting up bulk ingest in " + this.bulkDirectory);
+      throw new FlumeException("IOException encountered while setting up bulk ingest in " + this.bulkDirectory, e);
     }
     
+    this.metrics.register();
     super.start();
   }
   
@@ -147,12 +246,30 @@ public class AccumuloSink extends AbstractSink implements Configurable {
     
     Status status = Status.READY;
     
+    // resize and slow down while no transaction is open
+    if (this.memoryController != null) {
+      if (this.memoryController.shouldResize(System.currentTimeMillis())) {
+        resizeWriter(this.memoryController.targetBudget());
+      }
+      long pause = this.memoryController.throttleMillis(System.currentTimeMillis());
+      if (pause > 0) {
+        try {
+          Thread.sleep(pause);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        this.memoryController.recordThrottle(pause);
+      }
+    }
+    
     List<Mutation> mutations = new LinkedList<Mutation>();
     
     // Start transaction
     Channel ch = getChannel();
     Transaction txn = ch.getTransaction();
     txn.begin();
+    this.pendingSaltedRows.clear();
+    int eventTimeCount = 0;
     try {
       long i = 0;
       for (; i < batchSize; i++) {
@@ -167,20 +284,65 @@ public class AccumuloSink extends AbstractSink implements Configurable {
           break;
         } else {
           this.serializer.set(event);
-          mutations.addAll(serializer.getMutations());
+          addMutations(serializer.getMutations(), mutations);
+          if (this.trackEventTime) {
+            Long eventTime = ((EventTimeAccumuloEventSerializer) this.serializer).getEventTime();
+            if (eventTime != null) {
+              this.eventTimes[eventTimeCount++] = eventTime;
+            }
+          }
         }
       }
+      if (this.serializer instanceof BatchAccumuloEventSerializer) {
+        addMutations(((BatchAccumuloEventSerializer) this.serializer).flush(), mutations);
+      }
       if (i == batchSize) {
         sinkCounter.incrementBatchCompleteCount();
       }
       sinkCounter.addToEventDrainAttemptCount(i);
       
-      writer.addMutations(mutations);
+      long bytes = 0;
+      for (Mutation m : mutations) {
+        bytes += m.numBytes();
+      }
+      
+      if (this.bulkWriter != null) {
+        // the batch has to be durable in the bulk directory before it's committed
+        bulkWriter.addMutations(mutations);
+        bulkWriter.spill();
+      } else {
+        long start = System.nanoTime();
+        writer.addMutations(mutations);
+        this.memoryController.recordAdd(bytes, System.nanoTime() - start, System.currentTimeMillis());
+      }
       txn.commit();
+      sinkCounter.addToEventDrainSuccessCount(i);
+      this.metrics.addCommittedBatch(i, mutations.size(), bytes);
+      if (!this.pendingSaltedRows.isEmpty()) {
+        this.saltedRows.addAll(this.pendingSaltedRows);
+        this.pendingSaltedRows.clear();
+        this.metrics.setSaltedRowCount(this.saltedRows.size());
+      }
+      if (this.trackEventTime) {
+        recordEventTimes(eventTimeCount);
+      }
       
     } catch (Throwable t) {
       
       txn.rollback();      
+      // the salt markers were rolled back with the batch, so write them again with the next one
+      this.pendingSaltedRows.clear();
+      if (this.serializer instanceof BatchAccumuloEventSerializer) {
+        // drop whatever the serializer buffered from the rolled back events
+        ((BatchAccumuloEventSerializer) this.serializer).flush();
+      }
+      if (this.bulkWriter != null) {
+        try {
+          this.bulkWriter.discard();
+        } catch (IOException e) {
+          logger.warn("Could not clean up after failed bulk spill: " + e.getMessage());
+        }
+      }
       logger.warn("Caught " + t.getClass().toString() + " in AccumuloSink.process(). Message: " + t.getMessage());
       status = Status.BACKOFF;
       
@@ -191,11 +353,148 @@ public class AccumuloSink extends AbstractSink implements Configurable {
     } finally {
       txn.close();
     }
+    
+    // the batch is already committed, so a failed import only delays the data
+    if (this.bulkWriter != null) {
+      try {
+        this.bulkWriter.maybeImport();
+      } catch (Exception e) {
+        logger.warn("Caught " + e.getClass().toString() + " while bulk importing. Message: " + e.getMessage());
+        status = Status.BACKOFF;
+      }
+    }
     return status;
   }
   
+  /**
+   * Replace the BatchWriter with one using the new memory budget. This is done between transactions, and the old writer is closed, which flushes everything
+   * added to it, before anything is added to the new one, so the two never hold mutations at the same time. If the old writer can't be flushed, mutations
+   * from batches that were already committed are lost, as with any BatchWriter failure; the new writer stays in place for the next batch.
+   */
+  private void resizeWriter(long budget) throws EventDeliveryException {
+    BatchWriter resized;
+    try {
+      resized = createBatchWriter(budget);
+    } catch (TableNotFoundException e) {
+      // keep the current writer, and try again after the resize interval
+      logger.warn("Could not create a BatchWriter to resize to " + budget + " bytes: " + e.getMessage());
+      this.memoryController.resized(this.memoryController.getBudget(), System.currentTimeMillis());
+      return;
+    }
+    
+    logger.info("Resizing BatchWriter memory from " + this.memoryController.getBudget() + " to " + budget + " bytes");
+    BatchWriter old = this.writer;
+    this.writer = resized;
+    this.memoryController.resized(budget, System.currentTimeMillis());
+    try {
+      old.close();
+    } catch (MutationsRejectedException e) {
+      logger.error("Could not flush the BatchWriter being replaced, mutations from committed batches may be lost: " + e.getMessage());
+      throw new EventDeliveryException("Could not flush the BatchWriter being replaced", e);
+    }
+  }
+  
+  // visible for testing
+  BatchWriter createBatchWriter(long memory) throws TableNotFoundException {
+    return this.conn.createBatchWriter(this.tableName, memory, this.maxLatency, this.maxWriteThreads);
+  }
+  
+  // visible for testing
+  BulkIngestWriter createBulkIngestWriter(Connector conn, String tableName, Path dir, long importInterval, long importBytes) throws IOException {
+    return new BulkIngestWriter(conn, tableName, dir, importInterval, importBytes);
+  }
+  
+  // visible for testing
+  void setMemoryController(WriterMemoryController memoryController) {
+    this.memoryController = memoryController;
+    this.metrics.setMemoryController(memoryController);
+  }
+  
+  private static double parseDouble(Context context, String key, String defaultValue) {
+    String value = context.getString(key, defaultValue);
+    try {
+      return Double.parseDouble(value);
+    } catch (NumberFormatException e) {
+      throw new FlumeException(key + " is not a number: " + value, e);
+    }
+  }
+  
+  /**
+   * Record the event time to commit lag of each event in the committed batch, using the event times the serializer reported.
+   */
+  private void recordEventTimes(int count) {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < count; i++) {
+      this.metrics.recordEventTime(this.eventTimes[i], now);
+    }
+  }
+  
+  private void addMutations(List<Mutation> from, List<Mutation> mutations) {
+    if (this.hotRowTracker == null) {
+      mutations.addAll(from);
+    } else {
+      for (Mutation m : from) {
+        trackHotRow(m, mutations);
+      }
+    }
+  }
+  
+  /**
+   * Count the mutation's row in the hot row tracker and add it to mutations, salting its row if the row is hot.
+   */
+  private void trackHotRow(Mutation m, List<Mutation> mutations) {
+    String row = new String(m.getRow(), Charsets.UTF_8);
+    this.hotRowTracker.offer(row);
+    
+    if (this.saltBuckets < 1 || !this.hotRowTracker.isHot(row, this.hotRowThreshold, this.hotRowMinMutations)) {
+      mutations.add(m);
+      return;
+    }
+    
+    List<ColumnUpdate> updates = m.getUpdates();
+    if (!this.saltedRows.contains(row) && this.pendingSaltedRows.add(row)) {
+      logger.info("Row " + row + " is hot, switching it to " + this.saltBuckets + " salted rows");
+      
+      // record the salting on the original row with an empty visibility, so readers
+      // that can see any of the row's salted cells can also see the marker
+      Mutation marker = new Mutation(new Text(m.getRow()));
+      marker.put(new Text(AccumuloSinkConfigurationConstants.SALT_METADATA_COLUMN_FAMILY), new Text(
+          AccumuloSinkConfigurationConstants.SALT_METADATA_COLUMN_QUALIFIER), new ColumnVisibility(), new Value(Integer.toString(this.saltBuckets).getBytes(
+          Charsets.UTF_8)));
+      mutations.add(marker);
+    }
+    
+    long bucket = this.saltCounter++ % this.saltBuckets;
+    Mutation salted = new Mutation(new Text(String.format(this.saltFormat, bucket, row)));
+    for (ColumnUpdate update : updates) {
+      Text cf = new Text(update.getColumnFamily());
+      Text cq = new Text(update.getColumnQualifier());
+      ColumnVisibility cv = new ColumnVisibility(update.getColumnVisibility());
+      if (update.isDeleted()) {
+        if (update.hasTimestamp()) {
+          salted.putDelete(cf, cq, cv, update.getTimestamp());
+        } else {
+          salted.putDelete(cf, cq, cv);
+        }
+      } else if (update.hasTimestamp()) {
+        salted.put(cf, cq, cv, update.getTimestamp(), new Value(update.getValue()));
+      } else {
+        salted.put(cf, cq, cv, new Value(update.getValue()));
+      }
+    }
+    mutations.add(salted);
+  }
+  
+  /**
+   * The sink's JMX metrics.
+   */
+  public AccumuloSinkMetrics getMetrics() {
+    return this.metrics;
+  }
+  
   @Override
   public void stop() {
+    this.metrics.unregister();
     if (this.writer != null) {
       try {
         this.writer.close();
@@ -206,5 +505,15 @@ public class AccumuloSink extends AbstractSink implements Configurable {
         throw new FlumeException("MutationsRejectedException while closing AccumuloSink", e);        
       }
     }
+    if (this.bulkWriter != null) {
+      try {
+        this.bulkWriter.close();
+        this.bulkWriter = null;
+      } catch (Exception e) {
+        this.bulkWriter = null;
+        logger.error("Exception encountered on bulk import during close. Staged files will be imported on the next start.");
+        throw new FlumeException("Exception while bulk importing on close of AccumuloSink", e);
+      }
+    }
   }
 }
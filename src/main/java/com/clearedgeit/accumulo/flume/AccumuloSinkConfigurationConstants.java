@@ -55,4 +55,172 @@ public class AccumuloSinkConfigurationConstants {
    * Max write threads for the Accumulo BatchWriter
    */
   public static final String CONFIG_MAX_WRITE_THREADS = "accumulo.maxWriteThreads";
+  
+  /**
+   * Enable tracking of the most frequent row IDs. Defaults to false.
+   */
+  public static final String CONFIG_HOT_ROWS_ENABLED = "hotRows.enabled";
+  
+  /**
+   * Maximum number of distinct row IDs the hot row tracker keeps counters for.
+   */
+  public static final String CONFIG_HOT_ROWS_CAPACITY = "hotRows.capacity";
+  
+  /**
+   * Number of mutations after which the hot row counts are halved, so rows that cool down age out.
+   */
+  public static final String CONFIG_HOT_ROWS_WINDOW = "hotRows.window";
+  
+  /**
+   * Number of hot rows published through JMX.
+   */
+  public static final String CONFIG_HOT_ROWS_TOP_N = "hotRows.topN";
+  
+  /**
+   * Minimum share of the traffic (0.0 - 1.0) a row must carry to be considered hot.
+   */
+  public static final String CONFIG_HOT_ROWS_THRESHOLD = "hotRows.threshold";
+  
+  /**
+   * Minimum number of mutations seen in the current window before any row is considered hot.
+   */
+  public static final String CONFIG_HOT_ROWS_MIN_MUTATIONS = "hotRows.minMutations";
+  
+  /**
+   * Number of salt buckets hot rows are spread across. 0 (the default) disables salting.
+   */
+  public static final String CONFIG_HOT_ROWS_SALT_BUCKETS = "hotRows.saltBuckets";
+  
+  /**
+   * Column family of the metadata entry written to the original row when it is switched to salted keys.
+   */
+  public static final String SALT_METADATA_COLUMN_FAMILY = "flume_salt";
+  
+  /**
+   * Column qualifier of the salt metadata entry. Its value is the number of salt buckets.
+   */
+  public static final String SALT_METADATA_COLUMN_QUALIFIER = "buckets";
+  
+  /**
+   * Width in milliseconds of the time buckets the PackingAccumuloEventSerializer groups events by.
+   */
+  public static final String CONFIG_PACKING_BUCKET_MILLIS = "serializer.bucketMillis";
+  
+  /**
+   * Number of shard rows the PackingAccumuloEventSerializer spreads each time bucket over.
+   */
+  public static final String CONFIG_PACKING_SHARDS = "serializer.shards";
+  
+  /**
+   * Size in bytes at which the PackingAccumuloEventSerializer starts a new block.
+   */
+  public static final String CONFIG_PACKING_MAX_BLOCK_BYTES = "serializer.maxBlockBytes";
+  
+  /**
+   * Body format for the SchemaAccumuloEventSerializer, either "delimited" or "json".
+   */
+  public static final String CONFIG_SCHEMA_FORMAT = "serializer.format";
+  
+  /**
+   * Field delimiter for delimited bodies. Defaults to ",".
+   */
+  public static final String CONFIG_SCHEMA_DELIMITER = "serializer.delimiter";
+  
+  /**
+   * Comma separated list of the fields in the body. For delimited bodies, the fields are listed in the order they appear.
+   */
+  public static final String CONFIG_SCHEMA_FIELDS = "serializer.fields";
+  
+  /**
+   * Comma separated list of the fields that make up the rowID. If not set, a random UUID is used.
+   */
+  public static final String CONFIG_SCHEMA_ROW_ID = "serializer.rowId";
+  
+  /**
+   * Separator placed between the rowID fields. Defaults to "_".
+   */
+  public static final String CONFIG_SCHEMA_ROW_ID_SEPARATOR = "serializer.rowIdSeparator";
+  
+  /**
+   * Default column family for fields. Defaults to "flume".
+   */
+  public static final String CONFIG_SCHEMA_COLUMN_FAMILY = "serializer.columnFamily";
+  
+  /**
+   * Prefix for per field column mappings. serializer.column.[field] = family:qualifier, or just family to use the field name as the qualifier.
+   */
+  public static final String CONFIG_SCHEMA_COLUMN_PREFIX = "serializer.column.";
+  
+  /**
+   * Column family bad records are written to, with the raw body under the "body" qualifier. If not set, bad records are only logged and counted.
+   */
+  public static final String CONFIG_SCHEMA_ERROR_COLUMN_FAMILY = "serializer.errorColumnFamily";
+  
+  /**
+   * Work directory for bulk mode, as a hadoop path. Setting it switches the sink from a BatchWriter to writing RFiles and bulk importing them. The directory
+   * must be readable by the tablet servers.
+   */
+  public static final String CONFIG_BULK_DIRECTORY = "accumulo.bulk.directory";
+  
+  /**
+   * Maximum milliseconds between bulk imports in bulk mode.
+   */
+  public static final String CONFIG_BULK_IMPORT_INTERVAL = "accumulo.bulk.importInterval";
+  
+  /**
+   * Number of staged bytes that triggers a bulk import in bulk mode.
+   */
+  public static final String CONFIG_BULK_IMPORT_BYTES = "accumulo.bulk.importBytes";
+  
+  /**
+   * Header holding the event time, which serializers set as the timestamp of the keys they write. Event time extraction is off unless this,
+   * timestamp.pattern or timestamp.field is set.
+   */
+  public static final String CONFIG_TIMESTAMP_HEADER = "timestamp.header";
+  
+  /**
+   * Regular expression whose first group is the event time in the body. Used when the timestamp.header header is missing.
+   */
+  public static final String CONFIG_TIMESTAMP_PATTERN = "timestamp.pattern";
+  
+  /**
+   * For the SchemaAccumuloEventSerializer, the schema field holding the event time.
+   */
+  public static final String CONFIG_TIMESTAMP_FIELD = "timestamp.field";
+  
+  /**
+   * SimpleDateFormat pattern of the event time. If not set, the event time is parsed as epoch milliseconds.
+   */
+  public static final String CONFIG_TIMESTAMP_FORMAT = "timestamp.format";
+  
+  /**
+   * Milliseconds of commits the event time lag percentiles cover before they are reset.
+   */
+  public static final String CONFIG_TIMESTAMP_LAG_WINDOW = "timestamp.lagWindow";
+  
+  /**
+   * Let the sink resize the BatchWriter memory (accumulo.maxMemory) to match the observed throughput. Defaults to false.
+   */
+  public static final String CONFIG_ADAPTIVE_MEMORY = "accumulo.adaptiveMemory";
+  
+  /**
+   * Smallest BatchWriter memory, in bytes, the sink will resize to. Defaults to accumulo.maxMemory.
+   */
+  public static final String CONFIG_MIN_MEMORY = "accumulo.minMemory";
+  
+  /**
+   * Largest share of the JVM heap (0.0 - 1.0) the sink will resize the BatchWriter memory to. Defaults to 0.25.
+   */
+  public static final String CONFIG_MAX_MEMORY_HEAP_FRACTION = "accumulo.maxMemoryHeapFraction";
+  
+  /**
+   * Share of the BatchWriter memory (0.0 - 1.0) handed to the writer within the last maxLatency above which the sink pauses between batches, once the writer
+   * has blocked. Defaults to 0.8.
+   */
+  public static final String CONFIG_THROTTLE_THRESHOLD = "accumulo.throttleThreshold";
+  
+  /**
+   * Longest pause, in milliseconds, the sink takes between batches when the BatchWriter memory is full. 0 disables throttling. Defaults to 0.
+   */
+  public static final String CONFIG_MAX_THROTTLE = "accumulo.maxThrottle";
 }
@@ -0,0 +1,222 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics for a single AccumuloSink, exposed over JMX under com.clearedgeit.accumulo.flume:type=AccumuloSink,name=[sink name].
+ */
+
+public class AccumuloSinkMetrics implements AccumuloSinkMetricsMBean {
+  
+  private final String name;
+  private final int topN;
+  private HotRowTracker hotRowTracker;
+  private WriterMemoryController memoryController;
+  private SchemaAccumuloEventSerializer schemaSerializer;
+  private volatile int saltedRowCount = 0;
+  private final AtomicLong eventCount = new AtomicLong();
+  private final AtomicLong mutationCount = new AtomicLong();
+  private final AtomicLong mutationBytes = new AtomicLong();
+  
+  private final LatencyHistogram eventTimeLag = new LatencyHistogram();
+  private long lagWindowMillis = 60000L;
+  private long lagWindowStart = System.currentTimeMillis();
+  private volatile long watermark = 0;
+  
+  private ObjectName objectName;
+  
+  static private Logger logger = LoggerFactory.getLogger(AccumuloSinkMetrics.class);
+  
+  public AccumuloSinkMetrics(String name, int topN) {
+    this.name = name;
+    this.topN = topN;
+  }
+  
+  public void setHotRowTracker(HotRowTracker hotRowTracker) {
+    this.hotRowTracker = hotRowTracker;
+  }
+  
+  public void setMemoryController(WriterMemoryController memoryController) {
+    this.memoryController = memoryController;
+  }
+  
+  public void setSchemaSerializer(SchemaAccumuloEventSerializer schemaSerializer) {
+    this.schemaSerializer = schemaSerializer;
+  }
+  
+  public void setSaltedRowCount(int saltedRowCount) {
+    this.saltedRowCount = saltedRowCount;
+  }
+  
+  /**
+   * Count a batch of events, and the mutations generated from them, that was committed to the BatchWriter or bulk directory.
+   */
+  public void addCommittedBatch(long events, long mutations, long bytes) {
+    this.eventCount.addAndGet(events);
+    this.mutationCount.addAndGet(mutations);
+    this.mutationBytes.addAndGet(bytes);
+  }
+  
+  public void setLagWindow(long lagWindowMillis) {
+    this.lagWindowMillis = lagWindowMillis;
+  }
+  
+  /**
+   * Record the lag between an event's time and the time it was committed, and advance the watermark.
+   */
+  public void recordEventTime(long eventTime, long commitTime) {
+    synchronized (eventTimeLag) {
+      if (commitTime - lagWindowStart >= lagWindowMillis) {
+        eventTimeLag.reset();
+        lagWindowStart = commitTime;
+      }
+      eventTimeLag.record(commitTime - eventTime);
+      if (eventTime > watermark) {
+        watermark = eventTime;
+      }
+    }
+  }
+  
+  @Override
+  public long getWriterBudgetBytes() {
+    return memoryController == null ? 0 : memoryController.getBudget();
+  }
+  
+  @Override
+  public long getWriterRecentBytes() {
+    return memoryController == null ? 0 : memoryController.getRecentBytes();
+  }
+  
+  @Override
+  public long getWriterBlockedMillis() {
+    return memoryController == null ? 0 : memoryController.getBlockedMillis();
+  }
+  
+  @Override
+  public long getThrottledMillis() {
+    return memoryController == null ? 0 : memoryController.getThrottledMillis();
+  }
+  
+  @Override
+  public double getWriterThroughput() {
+    return memoryController == null ? 0.0 : memoryController.getThroughput();
+  }
+  
+  // visible for testing
+  long getEventTimeLagCount() {
+    return eventTimeLag.getCount();
+  }
+  
+  @Override
+  public long getEventTimeLagMillisP50() {
+    return eventTimeLag.getPercentile(50);
+  }
+  
+  @Override
+  public long getEventTimeLagMillisP99() {
+    return eventTimeLag.getPercentile(99);
+  }
+  
+  @Override
+  public long getEventTimeLagMillisMax() {
+    return eventTimeLag.getMax();
+  }
+  
+  @Override
+  public long getWatermark() {
+    return watermark;
+  }
+  
+  @Override
+  public long getWatermarkLagMillis() {
+    long current = watermark;
+    return current == 0 ? 0 : System.currentTimeMillis() - current;
+  }
+  
+  @Override
+  public long getEventCount() {
+    return eventCount.get();
+  }
+  
+  @Override
+  public long getMutationCount() {
+    return mutationCount.get();
+  }
+  
+  @Override
+  public long getMutationBytes() {
+    return mutationBytes.get();
+  }
+  
+  @Override
+  public long getBadRecordCount() {
+    return schemaSerializer == null ? 0 : schemaSerializer.getBadRecordCount();
+  }
+  
+  @Override
+  public String[] getHotRows() {
+    if (hotRowTracker == null) {
+      return new String[0];
+    }
+    List<HotRowTracker.HotRow> top = hotRowTracker.getTopRows(topN);
+    String[] rows = new String[top.size()];
+    for (int i = 0; i < rows.length; i++) {
+      rows[i] = top.get(i).toString();
+    }
+    return rows;
+  }
+  
+  @Override
+  public double getHotRowShare() {
+    if (hotRowTracker == null) {
+      return 0.0;
+    }
+    double share = 0.0;
+    for (HotRowTracker.HotRow row : hotRowTracker.getTopRows(topN)) {
+      share += row.getShare();
+    }
+    return share;
+  }
+  
+  @Override
+  public int getSaltedRowCount() {
+    return saltedRowCount;
+  }
+  
+  /**
+   * Register with the platform MBean server. Failures are logged, but never stop the sink.
+   */
+  public void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName on = new ObjectName("com.clearedgeit.accumulo.flume:type=AccumuloSink,name=" + ObjectName.quote(String.valueOf(name)));
+      if (server.isRegistered(on)) {
+        server.unregisterMBean(on);
+      }
+      server.registerMBean(this, on);
+      this.objectName = on;
+    } catch (Exception e) {
+      logger.warn("Could not register AccumuloSink metrics for " + name + ": " + e.getMessage());
+    }
+  }
+  
+  public void unregister() {
+    if (this.objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+    } catch (Exception e) {
+      logger.warn("Could not unregister AccumuloSink metrics for " + name + ": " + e.getMessage());
+    }
+    this.objectName = null;
+  }
+}
@@ -0,0 +1,95 @@
+package com.clearedgeit.accumulo.flume;
+
+/**
+ * JMX view of the AccumuloSink metrics that don't fit into the standard flume SinkCounter.
+ */
+
+public interface AccumuloSinkMetricsMBean {
+  
+  /**
+   * Number of events committed since the sink started.
+   */
+  public long getEventCount();
+  
+  /**
+   * Number of mutations committed since the sink started.
+   */
+  public long getMutationCount();
+  
+  /**
+   * Serialized size in bytes of the mutations committed since the sink started.
+   */
+  public long getMutationBytes();
+  
+  /**
+   * Number of event bodies the serializer could not parse since the sink started. Always 0 unless the SchemaAccumuloEventSerializer is used.
+   */
+  public long getBadRecordCount();
+  
+  /**
+   * Current BatchWriter memory budget in bytes.
+   */
+  public long getWriterBudgetBytes();
+  
+  /**
+   * Bytes handed to the BatchWriter within the last maxLatency, capped at the budget. This is an upper bound on what the writer holds, not a measurement: the
+   * writer flushes in the background and doesn't report its fill level.
+   */
+  public long getWriterRecentBytes();
+  
+  /**
+   * Total milliseconds spent in BatchWriter.addMutations, which blocks while the writer is full.
+   */
+  public long getWriterBlockedMillis();
+  
+  /**
+   * Total milliseconds the sink paused between batches to keep the BatchWriter from filling up.
+   */
+  public long getThrottledMillis();
+  
+  /**
+   * Observed BatchWriter throughput in bytes per second.
+   */
+  public double getWriterThroughput();
+  
+  /**
+   * Median lag, in milliseconds, between an event's time and the time its batch was committed, over the current timestamp.lagWindow. Each event is counted
+   * once, however many mutations it produced. In bulk mode, committed means spilled to the bulk directory, before the data is imported and visible.
+   */
+  public long getEventTimeLagMillisP50();
+  
+  /**
+   * 99th percentile event time to commit lag over the current timestamp.lagWindow.
+   */
+  public long getEventTimeLagMillisP99();
+  
+  /**
+   * Largest event time to commit lag over the current timestamp.lagWindow.
+   */
+  public long getEventTimeLagMillisMax();
+  
+  /**
+   * Latest event time committed so far, in epoch milliseconds, or 0 if no event time has been committed.
+   */
+  public long getWatermark();
+  
+  /**
+   * How far the watermark is behind the current time, in milliseconds. This grows while the sink works through a backlog.
+   */
+  public long getWatermarkLagMillis();
+  
+  /**
+   * The most frequent row IDs and their share of the traffic, formatted as row=share, most frequent first.
+   */
+  public String[] getHotRows();
+  
+  /**
+   * Combined share of the traffic carried by the rows returned from getHotRows().
+   */
+  public double getHotRowShare();
+  
+  /**
+   * Number of row IDs that have been switched to salted keys since the sink started.
+   */
+  public int getSaltedRowCount();
+}
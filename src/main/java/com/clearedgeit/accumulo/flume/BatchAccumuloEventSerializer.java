@@ -0,0 +1,17 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.List;
+
+import org.apache.accumulo.core.data.Mutation;
+
+/**
+ * An AccumuloEventSerializer that combines all of the events in a batch into its mutations, instead of generating mutations one event at a time.
+ */
+
+public interface BatchAccumuloEventSerializer extends AccumuloEventSerializer {
+  /**
+   * Get the mutations for every event that was set since the last flush. This is called once at the end of each batch the sink takes from the channel. If the
+   * batch is rolled back, the returned mutations are discarded.
+   */
+  public List<Mutation> flush();
+}
@@ -0,0 +1,450 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.conf.AccumuloConfiguration;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.file.FileOperations;
+import org.apache.accumulo.core.file.FileSKVIterator;
+import org.apache.accumulo.core.file.FileSKVWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes mutations as RFiles and bulk imports them, instead of sending them through a BatchWriter.
+ *
+ * Mutations are buffered into a sorted in-memory run. spill() writes the run as one RFile per tablet of the table (using the splits as of the last import)
+ * into a tmp directory, then moves the files into the current staging directory. Once spill() returns, the mutations are durable in the work directory and the
+ * flume transaction can be committed. maybeImport() hands the staging directory to importDirectory once enough time has passed or enough bytes are staged.
+ * After a failed import, maybeImport() waits for the import interval, or a minute if that is shorter, before trying again.
+ *
+ * Every spill writes a file for each tablet it touches, so before an import the files staged for each tablet are merged into one. The merged file is moved
+ * into the staging directory before the files it replaces are deleted, so a crash in between only leaves identical copies of the same keys to be imported.
+ *
+ * On the local filesystem, spilled files are forced to disk before they are moved into the staging directory. The rename itself is not synced. On HDFS,
+ * durability comes from the file being replicated when it is closed.
+ *
+ * The work directory can be on any hadoop FileSystem, but it must be readable by the tablet servers for the import to succeed. Staging directories left behind
+ * by a crash hold committed data, so they are imported when the writer starts.
+ */
+
+public class BulkIngestWriter {
+  
+  private static final String STAGING_PREFIX = "bulk-";
+  private static final String FAILURES_PREFIX = "failures-";
+  private static final String MERGED_PREFIX = "merged-";
+  private static final Pattern TABLET_SUFFIX = Pattern.compile("-(\\d+)\\.rf$");
+  private static final long MAX_RETRY_DELAY_MILLIS = 60000L;
+  
+  private final Connector conn;
+  private final String tableName;
+  private final Path workDir;
+  private final Path tmpDir;
+  private final long importIntervalMillis;
+  private final long importBytes;
+  private final Configuration conf;
+  private final FileSystem fs;
+  
+  private TreeMap<Key,Value> run = new TreeMap<Key,Value>();
+  private Text[] splits = new Text[0];
+  
+  private Path stagingDir;
+  private int stagedFiles = 0;
+  private long stagedBytes = 0;
+  private long lastImport;
+  private long importRetryAt = 0;
+  private long runCounter = 0;
+  
+  static private Logger logger = LoggerFactory.getLogger(BulkIngestWriter.class);
+  
+  public BulkIngestWriter(Connector conn, String tableName, Path workDir, long importIntervalMillis, long importBytes) throws IOException {
+    this(conn, tableName, workDir, importIntervalMillis, importBytes, new Configuration());
+  }
+  
+  public BulkIngestWriter(Connector conn, String tableName, Path workDir, long importIntervalMillis, long importBytes, Configuration conf) throws IOException {
+    this.conn = conn;
+    this.tableName = tableName;
+    this.conf = conf;
+    this.fs = workDir.getFileSystem(conf);
+    this.workDir = fs.makeQualified(workDir);
+    this.tmpDir = new Path(this.workDir, "tmp");
+    this.importIntervalMillis = importIntervalMillis;
+    this.importBytes = importBytes;
+  }
+  
+  /**
+   * Import anything left staged from a previous run, and start a new staging directory.
+   */
+  public void start() throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    fs.mkdirs(workDir);
+    
+    // anything in tmp was never committed
+    fs.delete(tmpDir, true);
+    fs.mkdirs(tmpDir);
+    
+    FileStatus[] existing = fs.listStatus(workDir);
+    if (existing != null) {
+      for (FileStatus status : existing) {
+        if (status.isDir() && status.getPath().getName().startsWith(STAGING_PREFIX)) {
+          logger.info("Importing files staged before the last shutdown from " + status.getPath());
+          mergeStaged(status.getPath());
+          importDirectory(status.getPath());
+        }
+      }
+    }
+    
+    refreshSplits();
+    newStagingDir();
+  }
+  
+  /**
+   * Add the mutations to the in-memory run.
+   */
+  public void addMutations(Iterable<Mutation> mutations) {
+    long now = System.currentTimeMillis();
+    for (Mutation m : mutations) {
+      byte[] row = m.getRow();
+      for (ColumnUpdate update : m.getUpdates()) {
+        long ts = update.hasTimestamp() ? update.getTimestamp() : now;
+        Key key = new Key(row, update.getColumnFamily(), update.getColumnQualifier(), update.getColumnVisibility(), ts, update.isDeleted());
+        run.put(key, new Value(update.getValue()));
+      }
+    }
+  }
+  
+  /**
+   * Write the in-memory run to the staging directory as one RFile per tablet. When this returns, the run is durable.
+   */
+  public void spill() throws IOException {
+    if (run.isEmpty()) {
+      return;
+    }
+    
+    String runName = String.format("run-%d-%06d", System.currentTimeMillis(), runCounter++);
+    List<Path> written = new ArrayList<Path>();
+    FileSKVWriter out = null;
+    int tablet = -1;
+    try {
+      for (Entry<Key,Value> entry : run.entrySet()) {
+        int t = tabletFor(entry.getKey().getRow());
+        if (out == null || t != tablet) {
+          if (out != null) {
+            out.close();
+          }
+          // the RFile format is picked from the .rf extension
+          Path file = new Path(tmpDir, String.format("%s-%05d.rf", runName, t));
+          out = FileOperations.getInstance().openWriter(file.toString(), fs, conf, AccumuloConfiguration.getDefaultConfiguration());
+          out.startDefaultLocalityGroup();
+          written.add(file);
+          tablet = t;
+        }
+        out.append(entry.getKey(), entry.getValue());
+      }
+      out.close();
+      out = null;
+      for (Path file : written) {
+        sync(file);
+      }
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          logger.warn("Could not close " + runName + " after a failed spill: " + e.getMessage());
+        }
+      }
+    }
+    
+    for (Path file : written) {
+      Path dest = new Path(stagingDir, file.getName());
+      if (!fs.rename(file, dest)) {
+        throw new IOException("Could not move " + file + " to " + dest);
+      }
+      stagedFiles++;
+      stagedBytes += fs.getFileStatus(dest).getLen();
+    }
+    run.clear();
+  }
+  
+  /**
+   * Drop the in-memory run and anything partially written by a failed spill.
+   */
+  public void discard() throws IOException {
+    run.clear();
+    fs.delete(tmpDir, true);
+    fs.mkdirs(tmpDir);
+  }
+  
+  /**
+   * Import the staging directory if the import interval has passed or enough bytes are staged.
+   *
+   * @return true if an import was done
+   */
+  public boolean maybeImport() throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    if (stagedFiles == 0 || System.currentTimeMillis() < importRetryAt) {
+      return false;
+    }
+    if (stagedBytes < importBytes && System.currentTimeMillis() - lastImport < importIntervalMillis) {
+      return false;
+    }
+    importNow();
+    return true;
+  }
+  
+  /**
+   * Import the staging directory, refresh the table splits and start a new staging directory.
+   */
+  public void importNow() throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    importStaged();
+    refreshSplits();
+    newStagingDir();
+  }
+  
+  /**
+   * Spill anything left in memory and import everything staged.
+   */
+  public void close() throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    spill();
+    importStaged();
+  }
+  
+  public Path getStagingDir() {
+    return stagingDir;
+  }
+  
+  public long getStagedBytes() {
+    return stagedBytes;
+  }
+  
+  public int getStagedFiles() {
+    return stagedFiles;
+  }
+  
+  // visible for testing
+  void importFiles(Path dir, Path failures) throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    conn.tableOperations().importDirectory(tableName, dir.toString(), failures.toString(), false);
+  }
+  
+  // visible for testing
+  void setSplits(Collection<Text> splits) {
+    this.splits = splits.toArray(new Text[splits.size()]);
+    Arrays.sort(this.splits);
+  }
+  
+  // tablet i holds the rows after split i - 1, up to and including split i
+  int tabletFor(Text row) {
+    int i = Arrays.binarySearch(splits, row);
+    return i >= 0 ? i : -(i + 1);
+  }
+  
+  private void refreshSplits() throws AccumuloSecurityException, TableNotFoundException, AccumuloException {
+    setSplits(conn.tableOperations().getSplits(tableName));
+  }
+  
+  private void newStagingDir() throws IOException {
+    lastImport = System.currentTimeMillis();
+    stagingDir = new Path(workDir, STAGING_PREFIX + lastImport);
+    fs.mkdirs(stagingDir);
+    stagedFiles = 0;
+    stagedBytes = 0;
+  }
+  
+  private void importStaged() throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    if (stagedFiles == 0) {
+      fs.delete(stagingDir, true);
+      return;
+    }
+    
+    boolean imported = false;
+    try {
+      stagedFiles = mergeStaged(stagingDir);
+      logger.info("Bulk importing " + stagedFiles + " files, " + stagedBytes + " bytes, from " + stagingDir);
+      importDirectory(stagingDir);
+      imported = true;
+    } finally {
+      if (!imported) {
+        importRetryAt = System.currentTimeMillis() + Math.min(importIntervalMillis, MAX_RETRY_DELAY_MILLIS);
+      }
+    }
+  }
+  
+  private void importDirectory(Path dir) throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    FileStatus[] files = fs.listStatus(dir);
+    if (files == null || files.length == 0) {
+      fs.delete(dir, true);
+      return;
+    }
+    
+    // importDirectory requires an empty failure directory. Never reuse one, an earlier
+    // attempt on the same staging directory may have left failed files in it.
+    String stamp = dir.getName().substring(STAGING_PREFIX.length());
+    Path failures = new Path(workDir, FAILURES_PREFIX + stamp);
+    for (int attempt = 1; fs.exists(failures); attempt++) {
+      failures = new Path(workDir, FAILURES_PREFIX + stamp + "-" + attempt);
+    }
+    fs.mkdirs(failures);
+    
+    try {
+      importFiles(dir, failures);
+    } finally {
+      FileStatus[] failed = fs.listStatus(failures);
+      if (failed != null && failed.length > 0) {
+        // leave the failed files for an operator, they hold committed events
+        logger.error(failed.length + " files failed to bulk import into " + tableName + ", they were left in " + failures);
+      } else {
+        fs.delete(failures, true);
+      }
+    }
+    fs.delete(dir, true);
+  }
+  
+  /**
+   * Merge the files staged in the directory for each tablet into one file.
+   *
+   * @return the number of files left in the directory
+   */
+  private int mergeStaged(Path dir) throws IOException {
+    FileStatus[] files = fs.listStatus(dir);
+    if (files == null) {
+      return 0;
+    }
+    
+    // file names sort in the order they were written, so later runs come last
+    Arrays.sort(files);
+    TreeMap<Integer,List<Path>> byTablet = new TreeMap<Integer,List<Path>>();
+    int count = 0;
+    for (FileStatus status : files) {
+      Matcher matcher = TABLET_SUFFIX.matcher(status.getPath().getName());
+      if (!matcher.find()) {
+        count++;
+        continue;
+      }
+      Integer tablet = Integer.valueOf(matcher.group(1));
+      List<Path> tabletFiles = byTablet.get(tablet);
+      if (tabletFiles == null) {
+        tabletFiles = new ArrayList<Path>();
+        byTablet.put(tablet, tabletFiles);
+      }
+      tabletFiles.add(status.getPath());
+    }
+    
+    long now = System.currentTimeMillis();
+    for (Entry<Integer,List<Path>> entry : byTablet.entrySet()) {
+      count++;
+      List<Path> tabletFiles = entry.getValue();
+      if (tabletFiles.size() < 2) {
+        continue;
+      }
+      String name = String.format("%s%d-%05d.rf", MERGED_PREFIX, now, entry.getKey());
+      Path merged = new Path(tmpDir, name);
+      merge(tabletFiles, merged);
+      Path dest = new Path(dir, name);
+      if (!fs.rename(merged, dest)) {
+        throw new IOException("Could not move " + merged + " to " + dest);
+      }
+      for (Path file : tabletFiles) {
+        fs.delete(file, false);
+      }
+    }
+    return count;
+  }
+  
+  private void merge(List<Path> files, Path dest) throws IOException {
+    final List<FileSKVIterator> readers = new ArrayList<FileSKVIterator>();
+    FileSKVWriter out = null;
+    try {
+      for (Path file : files) {
+        readers.add(FileOperations.getInstance().openReader(file.toString(), true, fs, conf, AccumuloConfiguration.getDefaultConfiguration()));
+      }
+      
+      // readers are ordered by key, then by the newest run first, so a key written by
+      // more than one run keeps the latest value, as it would have in a single run
+      PriorityQueue<Integer> queue = new PriorityQueue<Integer>(readers.size(), new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int c = readers.get(a).getTopKey().compareTo(readers.get(b).getTopKey());
+          return c != 0 ? c : b.compareTo(a);
+        }
+      });
+      for (int i = 0; i < readers.size(); i++) {
+        if (readers.get(i).hasTop()) {
+          queue.add(i);
+        }
+      }
+      
+      out = FileOperations.getInstance().openWriter(dest.toString(), fs, conf, AccumuloConfiguration.getDefaultConfiguration());
+      out.startDefaultLocalityGroup();
+      Key last = null;
+      while (!queue.isEmpty()) {
+        int i = queue.poll();
+        FileSKVIterator reader = readers.get(i);
+        if (last == null || reader.getTopKey().compareTo(last) != 0) {
+          last = new Key(reader.getTopKey());
+          out.append(last, reader.getTopValue());
+        }
+        reader.next();
+        if (reader.hasTop()) {
+          queue.add(i);
+        }
+      }
+      out.close();
+      out = null;
+      sync(dest);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          logger.warn("Could not close " + dest + " after a failed merge: " + e.getMessage());
+        }
+      }
+      for (FileSKVIterator reader : readers) {
+        reader.close();
+      }
+    }
+  }
+  
+  // Force a closed file, and its checksum file, to disk. Only the local filesystem needs this.
+  private void sync(Path file) throws IOException {
+    if (!"file".equals(fs.getUri().getScheme())) {
+      return;
+    }
+    File local = new File(file.toUri().getPath());
+    File[] synced = {local, new File(local.getParentFile(), "." + local.getName() + ".crc")};
+    for (File f : synced) {
+      if (!f.exists()) {
+        continue;
+      }
+      RandomAccessFile raf = new RandomAccessFile(f, "rw");
+      try {
+        raf.getChannel().force(true);
+      } finally {
+        raf.close();
+      }
+    }
+  }
+}
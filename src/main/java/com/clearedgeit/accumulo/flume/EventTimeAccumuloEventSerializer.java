@@ -0,0 +1,15 @@
+package com.clearedgeit.accumulo.flume;
+
+/**
+ * An AccumuloEventSerializer that reports the event time of each event it serializes, so the sink can track event time to commit lag per event instead of per
+ * mutation.
+ */
+
+public interface EventTimeAccumuloEventSerializer extends AccumuloEventSerializer {
+  /**
+   * Get the event time, in epoch milliseconds, of the event last passed to set(). This is called after getMutations() for that event.
+   *
+   * @return the event time, or null if the event has none or event time extraction isn't configured
+   */
+  public Long getEventTime();
+}
@@ -0,0 +1,91 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Extracts the event time from an event, so serializers can set it as the timestamp of the keys they write.
+ *
+ * The time is taken from the timestamp.header header if it is set on the event, otherwise from the first group of timestamp.pattern matched against the body.
+ * Values are parsed with the SimpleDateFormat in timestamp.format, or as epoch milliseconds if no format is set. Instances are not thread safe.
+ */
+
+public class EventTimestampExtractor {
+  
+  private final String header;
+  private final Pattern pattern;
+  private final SimpleDateFormat format;
+  
+  public EventTimestampExtractor(Context context) {
+    this.header = context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_HEADER);
+    
+    String regex = context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_PATTERN);
+    this.pattern = regex == null ? null : Pattern.compile(regex);
+    if (this.pattern != null && this.pattern.matcher("").groupCount() < 1) {
+      throw new FlumeException(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_PATTERN + " must have a capturing group: " + regex);
+    }
+    
+    String dateFormat = context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_FORMAT);
+    this.format = dateFormat == null ? null : new SimpleDateFormat(dateFormat);
+    if (this.format != null) {
+      this.format.setLenient(false);
+    }
+  }
+  
+  /**
+   * Returns true if the context configures any source of event time.
+   */
+  public static boolean isConfigured(Context context) {
+    return context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_HEADER) != null
+        || context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_PATTERN) != null
+        || context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_FIELD) != null;
+  }
+  
+  /**
+   * Returns the event time in epoch milliseconds, or null if the event doesn't have one that can be parsed.
+   */
+  public Long extract(Event event) {
+    Map<String,String> headers = event.getHeaders();
+    if (this.header != null && headers != null) {
+      String value = headers.get(this.header);
+      if (value != null) {
+        return parse(value);
+      }
+    }
+    if (this.pattern != null && event.getBody() != null) {
+      Matcher matcher = this.pattern.matcher(new String(event.getBody(), Charsets.UTF_8));
+      if (matcher.find() && matcher.group(1) != null) {
+        return parse(matcher.group(1));
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Parse a time value with the configured format, returning null if it can't be parsed.
+   */
+  public Long parse(String value) {
+    value = value.trim();
+    if (this.format == null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    try {
+      return this.format.parse(value).getTime();
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+}
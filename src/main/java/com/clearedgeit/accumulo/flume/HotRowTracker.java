@@ -0,0 +1,224 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming heavy-hitters tracker for row IDs, based on the space-saving algorithm.
+ *
+ * At most capacity rows are tracked at once. When an untracked row is offered and the tracker is full, the row with the smallest count is evicted and the new
+ * row inherits its count (recorded as error). Counters are kept in an indexed min-heap so every offer is O(log capacity). Every windowSize offers all counts are
+ * halved so rows that stop being hot age out.
+ */
+
+public class HotRowTracker {
+  
+  /**
+   * A tracked row and its estimated share of the traffic.
+   */
+  public static class HotRow {
+    private final String row;
+    private final long count;
+    private final long error;
+    private final double share;
+    
+    HotRow(String row, long count, long error, double share) {
+      this.row = row;
+      this.count = count;
+      this.error = error;
+      this.share = share;
+    }
+    
+    public String getRow() {
+      return row;
+    }
+    
+    /**
+     * Upper bound on the number of times the row was seen in the current window.
+     */
+    public long getCount() {
+      return count;
+    }
+    
+    /**
+     * Maximum overestimation in getCount().
+     */
+    public long getError() {
+      return error;
+    }
+    
+    /**
+     * Guaranteed (lower bound) share of the traffic in the current window.
+     */
+    public double getShare() {
+      return share;
+    }
+    
+    @Override
+    public String toString() {
+      return row + "=" + String.format("%.4f", share);
+    }
+  }
+  
+  private static class Counter {
+    String row;
+    long count;
+    long error;
+    int index;
+  }
+  
+  private final int capacity;
+  private final long windowSize;
+  private final Counter[] heap;
+  private final Map<String,Counter> counters;
+  private int size = 0;
+  private long total = 0;
+  private long offersInWindow = 0;
+  
+  /**
+   * @param capacity
+   *          maximum number of rows tracked at once
+   * @param windowSize
+   *          number of offers after which all counts are halved, or 0 to never decay
+   */
+  public HotRowTracker(int capacity, long windowSize) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("capacity must be positive: " + capacity);
+    }
+    this.capacity = capacity;
+    this.windowSize = windowSize;
+    this.heap = new Counter[capacity];
+    this.counters = new HashMap<String,Counter>(capacity * 2);
+  }
+  
+  /**
+   * Record one occurrence of the row.
+   */
+  public synchronized void offer(String row) {
+    Counter c = counters.get(row);
+    if (c != null) {
+      c.count++;
+      siftDown(c.index);
+    } else if (size < capacity) {
+      c = new Counter();
+      c.row = row;
+      c.count = 1;
+      c.error = 0;
+      c.index = size;
+      heap[size++] = c;
+      counters.put(row, c);
+      siftUp(c.index);
+    } else {
+      // evict the smallest counter and reuse it for the new row
+      c = heap[0];
+      counters.remove(c.row);
+      c.row = row;
+      c.error = c.count;
+      c.count++;
+      counters.put(row, c);
+      siftDown(0);
+    }
+    
+    total++;
+    if (windowSize > 0 && ++offersInWindow >= windowSize) {
+      decay();
+    }
+  }
+  
+  /**
+   * Returns true if the row's guaranteed share of the traffic is at least threshold, and at least minTotal offers have been seen in the current window.
+   */
+  public synchronized boolean isHot(String row, double threshold, long minTotal) {
+    if (total < minTotal || total == 0) {
+      return false;
+    }
+    Counter c = counters.get(row);
+    if (c == null) {
+      return false;
+    }
+    return (double) (c.count - c.error) / total >= threshold;
+  }
+  
+  /**
+   * Returns up to n of the most frequent rows, most frequent first.
+   */
+  public synchronized List<HotRow> getTopRows(int n) {
+    Counter[] sorted = Arrays.copyOf(heap, size);
+    Arrays.sort(sorted, new Comparator<Counter>() {
+      @Override
+      public int compare(Counter a, Counter b) {
+        return a.count < b.count ? 1 : (a.count > b.count ? -1 : 0);
+      }
+    });
+    
+    int limit = Math.min(n, sorted.length);
+    if (limit <= 0) {
+      return Collections.emptyList();
+    }
+    List<HotRow> top = new ArrayList<HotRow>(limit);
+    for (int i = 0; i < limit; i++) {
+      Counter c = sorted[i];
+      double share = total == 0 ? 0.0 : (double) (c.count - c.error) / total;
+      top.add(new HotRow(c.row, c.count, c.error, share));
+    }
+    return top;
+  }
+  
+  /**
+   * Number of offers counted in the current window.
+   */
+  public synchronized long getTotal() {
+    return total;
+  }
+  
+  // halve every counter; halving is monotonic so the heap order is preserved
+  private void decay() {
+    for (int i = 0; i < size; i++) {
+      heap[i].count /= 2;
+      heap[i].error /= 2;
+    }
+    total /= 2;
+    offersInWindow = 0;
+  }
+  
+  private void siftUp(int i) {
+    Counter c = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) / 2;
+      if (heap[parent].count <= c.count) {
+        break;
+      }
+      heap[i] = heap[parent];
+      heap[i].index = i;
+      i = parent;
+    }
+    heap[i] = c;
+    c.index = i;
+  }
+  
+  private void siftDown(int i) {
+    Counter c = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && heap[child + 1].count < heap[child].count) {
+        child++;
+      }
+      if (c.count <= heap[child].count) {
+        break;
+      }
+      heap[i] = heap[child];
+      heap[i].index = i;
+      i = child;
+    }
+    heap[i] = c;
+    c.index = i;
+  }
+}
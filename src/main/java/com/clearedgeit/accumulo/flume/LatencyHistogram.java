@@ -0,0 +1,95 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.Arrays;
+
+/**
+ * Fixed size histogram of non-negative long values, used for latencies.
+ *
+ * Values below 16 are counted exactly. Larger values are counted in log2 buckets split into 16 linear sub-buckets, so percentiles are within about 6% of the
+ * recorded values, at a fixed cost of 1024 counters no matter the range.
+ */
+
+public class LatencyHistogram {
+  
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  
+  private final long[] counts = new long[64 * SUB_BUCKETS];
+  private long count = 0;
+  private long sum = 0;
+  private long min = Long.MAX_VALUE;
+  private long max = 0;
+  
+  public synchronized void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts[index(value)]++;
+    count++;
+    sum += value;
+    min = Math.min(min, value);
+    max = Math.max(max, value);
+  }
+  
+  public synchronized long getCount() {
+    return count;
+  }
+  
+  public synchronized long getMin() {
+    return count == 0 ? 0 : min;
+  }
+  
+  public synchronized long getMax() {
+    return max;
+  }
+  
+  public synchronized double getMean() {
+    return count == 0 ? 0.0 : (double) sum / count;
+  }
+  
+  /**
+   * Returns the value below which the given percentage (0 - 100) of the recorded values fall, or 0 if nothing was recorded.
+   */
+  public synchronized long getPercentile(double percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= target) {
+        // report the top of the bucket, but never more than was actually recorded
+        return Math.max(min, Math.min(max, lowerBound(i + 1) - 1));
+      }
+    }
+    return max;
+  }
+  
+  public synchronized void reset() {
+    Arrays.fill(counts, 0);
+    count = 0;
+    sum = 0;
+    min = Long.MAX_VALUE;
+    max = 0;
+  }
+  
+  private static int index(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    int sub = (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+  
+  private static long lowerBound(int index) {
+    int major = index / SUB_BUCKETS;
+    int sub = index % SUB_BUCKETS;
+    if (major == 0) {
+      return sub;
+    }
+    return ((long) (SUB_BUCKETS + sub)) << (major - 1);
+  }
+}
@@ -0,0 +1,122 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Encodes events into, and decodes them from, the block values written by the PackingAccumuloEventSerializer.
+ * 
+ * A block is a sequence of length prefixed records, one per event. Every length is a hadoop vint:
+ * 
+ * <pre>
+ * record  := recordLength headerCount (keyLength key valueLength value)* bodyLength body
+ * </pre>
+ * 
+ * Header keys and values are UTF-8. Readers and iterators only need this class to get the original events back out of a block.
+ */
+
+public class PackedEventCodec {
+  
+  private PackedEventCodec() {}
+  
+  /**
+   * Append a record for the event to the block.
+   */
+  public static void encode(Event event, DataOutput block) throws IOException {
+    encode(event, block, Collections.<String> emptySet());
+  }
+  
+  /**
+   * Append a record for the event to the block, leaving out the excluded headers. The event itself is not changed.
+   */
+  public static void encode(Event event, DataOutput block, Collection<String> excludedHeaders) throws IOException {
+    DataOutputBuffer record = new DataOutputBuffer();
+    Map<String,String> headers = event.getHeaders();
+    if (headers == null) {
+      WritableUtils.writeVInt(record, 0);
+    } else {
+      int count = 0;
+      for (String key : headers.keySet()) {
+        if (!excludedHeaders.contains(key)) {
+          count++;
+        }
+      }
+      WritableUtils.writeVInt(record, count);
+      for (Map.Entry<String,String> header : headers.entrySet()) {
+        if (excludedHeaders.contains(header.getKey())) {
+          continue;
+        }
+        writeBytes(record, header.getKey().getBytes(Charsets.UTF_8));
+        writeBytes(record, header.getValue().getBytes(Charsets.UTF_8));
+      }
+    }
+    writeBytes(record, event.getBody() == null ? new byte[0] : event.getBody());
+    
+    WritableUtils.writeVInt(block, record.getLength());
+    block.write(record.getData(), 0, record.getLength());
+  }
+  
+  /**
+   * Decode every event in the block.
+   */
+  public static List<Event> decode(byte[] block) throws IOException {
+    List<Event> events = new LinkedList<Event>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+    while (in.available() > 0) {
+      // the record length lets readers skip records without decoding them,
+      // it isn't needed when reading every record
+      WritableUtils.readVInt(in);
+      
+      int headerCount = WritableUtils.readVInt(in);
+      Map<String,String> headers = new HashMap<String,String>();
+      for (int i = 0; i < headerCount; i++) {
+        String key = new String(readBytes(in), Charsets.UTF_8);
+        String value = new String(readBytes(in), Charsets.UTF_8);
+        headers.put(key, value);
+      }
+      events.add(EventBuilder.withBody(readBytes(in), headers));
+    }
+    return events;
+  }
+  
+  /**
+   * Count the records in the block without decoding them.
+   */
+  public static int count(byte[] block) throws IOException {
+    int count = 0;
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+    while (in.available() > 0) {
+      int length = WritableUtils.readVInt(in);
+      in.skipBytes(length);
+      count++;
+    }
+    return count;
+  }
+  
+  private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+    WritableUtils.writeVInt(out, bytes.length);
+    out.write(bytes);
+  }
+  
+  private static byte[] readBytes(DataInput in) throws IOException {
+    byte[] bytes = new byte[WritableUtils.readVInt(in)];
+    in.readFully(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,544 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.FlumeException;
+import org.apache.flume.conf.ComponentConfiguration;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+/**
+ * AccumuloEventSerializer that parses delimited or JSON bodies and writes each field declared in the schema to its own column.
+ *
+ * Bodies are parsed in a single pass over the bytes, without building an object tree or decoding field names. For JSON, only the top level fields of an
+ * object are mapped; nested objects and arrays are written as their raw JSON text, and null values are treated as missing. Delimited bodies are split on a
+ * single byte delimiter, with no quoting, and the last field takes the rest of the line, delimiters included.
+ *
+ * The rowID is built from the fields listed in serializer.rowId, and the columnVisibility header is applied the same way as in
+ * SimpleAccumuloEventSerializer. Bodies that can't be parsed, or are missing a rowID field, are counted without failing the batch, and are optionally
+ * written to serializer.errorColumnFamily. The count is published by the sink as the BadRecordCount JMX attribute. Each bad body is logged at DEBUG, and a
+ * WARN summarizing them is logged at most once a minute, so a bad feed doesn't flood the agent log.
+ *
+ * If timestamp.field names a schema field, it is parsed as the event time and set as the timestamp of every key. Otherwise the header and body pattern
+ * settings of EventTimestampExtractor are used, if configured.
+ */
+
+public class SchemaAccumuloEventSerializer implements EventTimeAccumuloEventSerializer {
+  
+  private static class Field {
+    String name;
+    byte[] nameBytes;
+    Text cf;
+    Text cq;
+  }
+  
+  private static class BadRecordException extends Exception {
+    private static final long serialVersionUID = 1L;
+    
+    BadRecordException(String message) {
+      super(message);
+    }
+  }
+  
+  private boolean json;
+  private byte delimiter;
+  private Field[] fields;
+  private int[] rowIdFields;
+  private byte[] rowIdSeparator;
+  private Text errorCf;
+  private EventTimestampExtractor timestampExtractor;
+  private int timestampField;
+  
+  private Event currentEvent;
+  private Long eventTime;
+  // parsed values, indexed the same as fields. Reused between events.
+  private byte[][] values;
+  // read from the JMX thread
+  private volatile long badRecordCount = 0;
+  private long badRecordsSinceWarning = 0;
+  private long lastWarning = 0;
+  
+  static private Logger logger = LoggerFactory.getLogger(SchemaAccumuloEventSerializer.class);
+  
+  private static final Text BODY_QUALIFIER = new Text("body");
+  private static final long WARNING_INTERVAL_MILLIS = 60000L;
+  private static final byte[] TRUE = "true".getBytes(Charsets.US_ASCII);
+  private static final byte[] FALSE = "false".getBytes(Charsets.US_ASCII);
+  private static final byte[] NULL = "null".getBytes(Charsets.US_ASCII);
+  
+  @Override
+  public void configure(Context context) {
+    String format = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FORMAT, "delimited");
+    if (format.equals("json")) {
+      this.json = true;
+    } else if (format.equals("delimited")) {
+      this.json = false;
+    } else {
+      throw new FlumeException("Unknown " + AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FORMAT + ": " + format);
+    }
+    
+    String delim = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_DELIMITER, ",");
+    if (delim.equals("\\t")) {
+      delim = "\t";
+    }
+    byte[] delimBytes = delim.getBytes(Charsets.UTF_8);
+    if (delimBytes.length != 1) {
+      throw new FlumeException(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_DELIMITER + " must be a single byte: " + delim);
+    }
+    this.delimiter = delimBytes[0];
+    
+    // compile the field name encodings and column mappings once, so parsing never has to build strings
+    String fieldList = Preconditions.checkNotNull(context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FIELDS),
+        AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FIELDS + " is required");
+    String defaultCf = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_COLUMN_FAMILY, "flume");
+    String[] names = splitList(fieldList);
+    this.fields = new Field[names.length];
+    for (int i = 0; i < names.length; i++) {
+      Field field = new Field();
+      field.name = names[i];
+      field.nameBytes = names[i].getBytes(Charsets.UTF_8);
+      
+      String column = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_COLUMN_PREFIX + names[i]);
+      if (column == null) {
+        field.cf = new Text(defaultCf);
+        field.cq = new Text(names[i]);
+      } else {
+        int colon = column.indexOf(':');
+        field.cf = new Text(colon < 0 ? column : column.substring(0, colon));
+        field.cq = new Text(colon < 0 ? names[i] : column.substring(colon + 1));
+      }
+      this.fields[i] = field;
+    }
+    this.values = new byte[this.fields.length][];
+    
+    String rowIdList = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_ROW_ID);
+    String[] rowIdNames = rowIdList == null ? new String[0] : splitList(rowIdList);
+    this.rowIdFields = new int[rowIdNames.length];
+    for (int i = 0; i < rowIdNames.length; i++) {
+      this.rowIdFields[i] = Arrays.asList(names).indexOf(rowIdNames[i]);
+      if (this.rowIdFields[i] < 0) {
+        throw new FlumeException("rowID field " + rowIdNames[i] + " is not in " + AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FIELDS);
+      }
+    }
+    this.rowIdSeparator = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_ROW_ID_SEPARATOR, "_").getBytes(Charsets.UTF_8);
+    
+    String errorFamily = context.getString(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_ERROR_COLUMN_FAMILY);
+    this.errorCf = errorFamily == null ? null : new Text(errorFamily);
+    
+    this.timestampExtractor = EventTimestampExtractor.isConfigured(context) ? new EventTimestampExtractor(context) : null;
+    String timestampFieldName = context.getString(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_FIELD);
+    this.timestampField = timestampFieldName == null ? -1 : Arrays.asList(names).indexOf(timestampFieldName);
+    if (timestampFieldName != null && this.timestampField < 0) {
+      throw new FlumeException("timestamp field " + timestampFieldName + " is not in " + AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FIELDS);
+    }
+  }
+  
+  @Override
+  public void configure(ComponentConfiguration arg0) {
+    // nothing to configure from a ComponentConfiguration
+  }
+  
+  @Override
+  public void set(Event event) {
+    this.currentEvent = event;
+    this.eventTime = null;
+  }
+  
+  @Override
+  public List<Mutation> getMutations() {
+    List<Mutation> mutationList = new LinkedList<Mutation>();
+    
+    Map<String,String> headers = this.currentEvent.getHeaders();
+    String visHeader = headers == null ? null : headers.get("columnVisibility");
+    ColumnVisibility cv = visHeader != null && visHeader.length() > 0 ? new ColumnVisibility(visHeader.getBytes()) : new ColumnVisibility();
+    
+    byte[] body = this.currentEvent.getBody();
+    Arrays.fill(this.values, null);
+    Text rowID;
+    try {
+      if (this.json) {
+        parseJson(body);
+      } else {
+        parseDelimited(body);
+      }
+      rowID = buildRowID();
+    } catch (BadRecordException e) {
+      logBadRecord(e, body);
+      if (this.errorCf != null) {
+        Mutation mutation = new Mutation(new Text(UUID.randomUUID().toString()));
+        mutation.put(this.errorCf, BODY_QUALIFIER, cv, new Value(body));
+        mutationList.add(mutation);
+      }
+      return mutationList;
+    }
+    
+    Long timestamp = null;
+    if (this.timestampField >= 0) {
+      byte[] value = this.values[this.timestampField];
+      timestamp = value == null ? null : this.timestampExtractor.parse(new String(value, Charsets.UTF_8));
+    } else if (this.timestampExtractor != null) {
+      timestamp = this.timestampExtractor.extract(this.currentEvent);
+    }
+    this.eventTime = timestamp;
+    
+    Mutation mutation = new Mutation(rowID);
+    for (int i = 0; i < this.fields.length; i++) {
+      if (this.values[i] == null) {
+        continue;
+      }
+      if (timestamp != null) {
+        mutation.put(this.fields[i].cf, this.fields[i].cq, cv, timestamp, new Value(this.values[i]));
+      } else {
+        mutation.put(this.fields[i].cf, this.fields[i].cq, cv, new Value(this.values[i]));
+      }
+    }
+    mutationList.add(mutation);
+    return mutationList;
+  }
+  
+  /**
+   * Number of bodies that could not be parsed since the serializer was created.
+   */
+  public long getBadRecordCount() {
+    return this.badRecordCount;
+  }
+  
+  private void logBadRecord(BadRecordException e, byte[] body) {
+    this.badRecordCount++;
+    this.badRecordsSinceWarning++;
+    if (logger.isDebugEnabled()) {
+      logger.debug("Bad record (" + e.getMessage() + "): " + new String(body, 0, Math.min(body.length, 200), Charsets.UTF_8));
+    }
+    long now = System.currentTimeMillis();
+    if (now - this.lastWarning >= WARNING_INTERVAL_MILLIS) {
+      logger.warn(this.badRecordsSinceWarning + " bad records since the last warning, the latest: " + e.getMessage());
+      this.badRecordsSinceWarning = 0;
+      this.lastWarning = now;
+    }
+  }
+  
+  @Override
+  public Long getEventTime() {
+    return this.eventTime;
+  }
+  
+  @Override
+  public void close() {
+    this.currentEvent = null;
+  }
+  
+  private Text buildRowID() throws BadRecordException {
+    if (this.rowIdFields.length == 0) {
+      return new Text(UUID.randomUUID().toString());
+    }
+    Text rowID = new Text();
+    for (int i = 0; i < this.rowIdFields.length; i++) {
+      byte[] value = this.values[this.rowIdFields[i]];
+      if (value == null) {
+        throw new BadRecordException("missing rowID field " + this.fields[this.rowIdFields[i]].name);
+      }
+      if (i > 0) {
+        rowID.append(this.rowIdSeparator, 0, this.rowIdSeparator.length);
+      }
+      rowID.append(value, 0, value.length);
+    }
+    return rowID;
+  }
+  
+  private void parseDelimited(byte[] b) throws BadRecordException {
+    int end = b.length;
+    while (end > 0 && (b[end - 1] == '\n' || b[end - 1] == '\r')) {
+      end--;
+    }
+    
+    // split off all but the last field, which takes the rest of the line
+    int last = this.fields.length - 1;
+    int field = 0;
+    int start = 0;
+    for (int pos = 0; pos < end && field < last; pos++) {
+      if (b[pos] == this.delimiter) {
+        this.values[field++] = Arrays.copyOfRange(b, start, pos);
+        start = pos + 1;
+      }
+    }
+    if (field < last) {
+      throw new BadRecordException("expected " + this.fields.length + " fields, found " + (field + 1));
+    }
+    this.values[last] = Arrays.copyOfRange(b, start, end);
+  }
+  
+  private void parseJson(byte[] b) throws BadRecordException {
+    int pos = skipWhitespace(b, 0);
+    pos = expect(b, pos, '{');
+    pos = skipWhitespace(b, pos);
+    if (pos < b.length && b[pos] == '}') {
+      pos++;
+    } else {
+      while (true) {
+        // key
+        pos = expect(b, pos, '"');
+        int keyStart = pos;
+        int keyEnd = findStringEnd(b, pos);
+        int field = matchField(b, keyStart, keyEnd);
+        pos = skipWhitespace(b, keyEnd + 1);
+        pos = expect(b, pos, ':');
+        pos = skipWhitespace(b, pos);
+        
+        // value
+        if (pos >= b.length) {
+          throw new BadRecordException("unexpected end of input");
+        }
+        int valueStart = pos;
+        byte c = b[pos];
+        if (c == '"') {
+          int valueEnd = findStringEnd(b, pos + 1);
+          if (field >= 0) {
+            this.values[field] = unescape(b, pos + 1, valueEnd);
+          }
+          pos = valueEnd + 1;
+        } else {
+          boolean isNull = false;
+          if (c == '{' || c == '[') {
+            pos = skipNested(b, pos);
+          } else if (c == 't') {
+            pos = expectLiteral(b, pos, TRUE);
+          } else if (c == 'f') {
+            pos = expectLiteral(b, pos, FALSE);
+          } else if (c == 'n') {
+            pos = expectLiteral(b, pos, NULL);
+            isNull = true;
+          } else {
+            pos = skipNumber(b, pos);
+          }
+          if (field >= 0) {
+            this.values[field] = isNull ? null : Arrays.copyOfRange(b, valueStart, pos);
+          }
+        }
+        
+        pos = skipWhitespace(b, pos);
+        if (pos < b.length && b[pos] == ',') {
+          pos = skipWhitespace(b, pos + 1);
+        } else {
+          pos = expect(b, pos, '}');
+          break;
+        }
+      }
+    }
+    if (skipWhitespace(b, pos) != b.length) {
+      throw new BadRecordException("trailing data at " + pos);
+    }
+  }
+  
+  private int matchField(byte[] b, int start, int end) {
+    int length = end - start;
+    for (int i = 0; i < this.fields.length; i++) {
+      byte[] name = this.fields[i].nameBytes;
+      if (name.length != length) {
+        continue;
+      }
+      int j = 0;
+      while (j < length && name[j] == b[start + j]) {
+        j++;
+      }
+      if (j == length) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  private static int expect(byte[] b, int pos, char c) throws BadRecordException {
+    if (pos >= b.length || b[pos] != c) {
+      throw new BadRecordException("expected '" + c + "' at " + pos);
+    }
+    return pos + 1;
+  }
+  
+  private static int expectLiteral(byte[] b, int pos, byte[] literal) throws BadRecordException {
+    for (int i = 0; i < literal.length; i++) {
+      if (pos + i >= b.length || b[pos + i] != literal[i]) {
+        throw new BadRecordException("bad literal at " + pos);
+      }
+    }
+    return pos + literal.length;
+  }
+  
+  // returns the position just past the JSON number starting at pos
+  private static int skipNumber(byte[] b, int pos) throws BadRecordException {
+    int start = pos;
+    if (pos < b.length && b[pos] == '-') {
+      pos++;
+    }
+    if (pos < b.length && b[pos] == '0') {
+      pos++;
+    } else if (pos < b.length && b[pos] >= '1' && b[pos] <= '9') {
+      pos = skipDigits(b, pos);
+    } else {
+      throw new BadRecordException("bad value at " + start);
+    }
+    if (pos < b.length && b[pos] == '.') {
+      int digits = pos + 1;
+      pos = skipDigits(b, digits);
+      if (pos == digits) {
+        throw new BadRecordException("bad number at " + start);
+      }
+    }
+    if (pos < b.length && (b[pos] == 'e' || b[pos] == 'E')) {
+      pos++;
+      if (pos < b.length && (b[pos] == '+' || b[pos] == '-')) {
+        pos++;
+      }
+      int digits = pos;
+      pos = skipDigits(b, digits);
+      if (pos == digits) {
+        throw new BadRecordException("bad number at " + start);
+      }
+    }
+    return pos;
+  }
+  
+  private static int skipDigits(byte[] b, int pos) {
+    while (pos < b.length && b[pos] >= '0' && b[pos] <= '9') {
+      pos++;
+    }
+    return pos;
+  }
+  
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+  
+  private static int skipWhitespace(byte[] b, int pos) {
+    while (pos < b.length && isWhitespace(b[pos])) {
+      pos++;
+    }
+    return pos;
+  }
+  
+  // returns the position of the closing quote of the string starting at pos
+  private static int findStringEnd(byte[] b, int pos) throws BadRecordException {
+    while (pos < b.length) {
+      if (b[pos] == '\\') {
+        pos += 2;
+      } else if (b[pos] == '"') {
+        return pos;
+      } else {
+        pos++;
+      }
+    }
+    throw new BadRecordException("unterminated string");
+  }
+  
+  // returns the position just past the object or array starting at pos
+  private static int skipNested(byte[] b, int pos) throws BadRecordException {
+    int depth = 0;
+    while (pos < b.length) {
+      byte c = b[pos];
+      if (c == '"') {
+        pos = findStringEnd(b, pos + 1);
+      } else if (c == '{' || c == '[') {
+        depth++;
+      } else if (c == '}' || c == ']') {
+        if (--depth == 0) {
+          return pos + 1;
+        }
+      }
+      pos++;
+    }
+    throw new BadRecordException("unterminated object or array");
+  }
+  
+  private static byte[] unescape(byte[] b, int start, int end) throws BadRecordException {
+    int pos = start;
+    while (pos < end && b[pos] != '\\') {
+      pos++;
+    }
+    if (pos == end) {
+      return Arrays.copyOfRange(b, start, end);
+    }
+    
+    ByteArrayOutputStream out = new ByteArrayOutputStream(end - start);
+    out.write(b, start, pos - start);
+    StringBuilder chars = new StringBuilder();
+    while (pos < end) {
+      if (b[pos] != '\\') {
+        out.write(b[pos++]);
+        continue;
+      }
+      if (pos + 1 >= end) {
+        throw new BadRecordException("bad escape at " + pos);
+      }
+      byte c = b[pos + 1];
+      pos += 2;
+      switch (c) {
+        case 'b':
+          out.write('\b');
+          break;
+        case 'f':
+          out.write('\f');
+          break;
+        case 'n':
+          out.write('\n');
+          break;
+        case 'r':
+          out.write('\r');
+          break;
+        case 't':
+          out.write('\t');
+          break;
+        case 'u':
+          // collect consecutive unicode escapes so surrogate pairs are encoded together
+          chars.setLength(0);
+          pos -= 2;
+          while (pos + 6 <= end && b[pos] == '\\' && b[pos + 1] == 'u') {
+            int code = 0;
+            for (int i = pos + 2; i < pos + 6; i++) {
+              int digit = Character.digit(b[i], 16);
+              if (digit < 0) {
+                throw new BadRecordException("bad unicode escape at " + pos);
+              }
+              code = code * 16 + digit;
+            }
+            chars.append((char) code);
+            pos += 6;
+          }
+          if (chars.length() == 0) {
+            throw new BadRecordException("bad unicode escape at " + pos);
+          }
+          byte[] encoded = chars.toString().getBytes(Charsets.UTF_8);
+          out.write(encoded, 0, encoded.length);
+          break;
+        case '"':
+        case '\\':
+        case '/':
+          out.write(c);
+          break;
+        default:
+          throw new BadRecordException("bad escape at " + (pos - 2));
+      }
+    }
+    return out.toByteArray();
+  }
+  
+  private static String[] splitList(String list) {
+    String[] items = list.split(",");
+    for (int i = 0; i < items.length; i++) {
+      items[i] = items[i].trim();
+    }
+    return items;
+  }
+}
@@ -20,15 +20,21 @@ import org.apache.hadoop.io.Text;
  * 
  * rowID, columnFamily, and columnVisibility can be set by adding them to the event headers, either at the source, or with a flume interceptor. If none of those
  * are set, the rowID will be a random UUID, columnFamily will be "flume" and columnVisibility will be empty.
+ * 
+ * If event time extraction is configured (see EventTimestampExtractor), every key is written with the event time as its timestamp.
  */
 
-public class SimpleAccumuloEventSerializer implements AccumuloEventSerializer {
+public class SimpleAccumuloEventSerializer implements EventTimeAccumuloEventSerializer {
   
   private Event currentEvent;
+  private Long eventTime;
+  private EventTimestampExtractor timestampExtractor;
   
   @Override
-  public void configure(Context arg0) {
-    // nothing to configure in this simple implementation
+  public void configure(Context context) {
+    if (EventTimestampExtractor.isConfigured(context)) {
+      this.timestampExtractor = new EventTimestampExtractor(context);
+    }
   }
   
   @Override
@@ -39,6 +45,7 @@ public class SimpleAccumuloEventSerializer implements AccumuloEventSerializer {
   @Override
   public void set(Event event) {
     this.currentEvent = event;
+    this.eventTime = null;
   }
   
   // In this implementation, this method always
@@ -95,6 +102,8 @@ public class SimpleAccumuloEventSerializer implements AccumuloEventSerializer {
     }
     
     Mutation mutation = new Mutation(rowID);
+    Long timestamp = this.timestampExtractor == null ? null : this.timestampExtractor.extract(this.currentEvent);
+    this.eventTime = timestamp;
     
     // this will write the body with columnQualifier "body" and any remaining headers
     // with columnQualifier "header_"+headerKey
@@ -112,13 +121,22 @@ public class SimpleAccumuloEventSerializer implements AccumuloEventSerializer {
     for (Entry<String,byte[]> attr : entryMap.entrySet()) {
       cq.set(attr.getKey());
       value.set(attr.getValue());
-      mutation.put(cf, cq, cv, value);
+      if (timestamp != null) {
+        mutation.put(cf, cq, cv, timestamp, value);
+      } else {
+        mutation.put(cf, cq, cv, value);
+      }
     }
     mutationList.add(mutation);
     
     return mutationList;
   }
   
+  @Override
+  public Long getEventTime() {
+    return this.eventTime;
+  }
+  
   @Override
   public void close() {
     this.currentEvent = null;
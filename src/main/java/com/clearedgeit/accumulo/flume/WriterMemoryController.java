@@ -0,0 +1,176 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.ArrayDeque;
+
+/**
+ * Tracks the bytes the sink has handed to its BatchWriter, so the sink can slow down its channel takes before the writer fills up and blocks, and can resize
+ * the writer's memory budget to match the observed throughput.
+ *
+ * The BatchWriter doesn't report how much of its memory is in use, so the controller only knows the bytes added within the last maxLatency milliseconds,
+ * since the writer flushes everything at least that often. That is an upper bound, not a measurement, as the writer also flushes in the background once it
+ * is half full, and a healthy writer can be handed many times its memory per maxLatency. With the fill level out of sight, the first short blocks in
+ * addMutations are the earliest real sign the writer is filling up, so throttling starts once addMutations has blocked for 1% of the last maxLatency window,
+ * well before it blocks for long. From then on, while the recent bytes are over throttleThreshold of the budget, throttleMillis() returns a pause that grows
+ * linearly up to maxThrottleMillis. A maxThrottleMillis of 0 turns throttling off. The sink takes the pause between transactions, never while one is open.
+ *
+ * When adaptive, the target budget is twice the bytes written per maxLatency at the observed throughput, doubled while the sink spends more than 5% of its time
+ * blocked in the writer, and kept between the minimum and maximum budget. All times are passed in, in milliseconds, so the controller can be tested without a
+ * clock.
+ */
+
+public class WriterMemoryController {
+  
+  private static final long RATE_WINDOW_MILLIS = 10000L;
+  private static final long RESIZE_INTERVAL_MILLIS = 30000L;
+  private static final double RESIZE_HYSTERESIS = 0.25;
+  private static final double BLOCKED_FRACTION_TO_GROW = 0.05;
+  private static final double BLOCKED_FRACTION_TO_THROTTLE = 0.01;
+  
+  private final long minBudget;
+  private final long maxBudget;
+  private final long maxLatencyMillis;
+  private final boolean adaptive;
+  private final double throttleThreshold;
+  private final long maxThrottleMillis;
+  
+  private long budget;
+  
+  // {time, bytes, blocked nanos} for each batch added within the last maxLatencyMillis
+  private final ArrayDeque<long[]> recent = new ArrayDeque<long[]>();
+  private long recentBytes = 0;
+  private long recentBlockedNanos = 0;
+  
+  private long rateWindowStart = -1;
+  private long rateWindowBytes = 0;
+  private long rateWindowBlockedNanos = 0;
+  private double throughput = 0.0;
+  private double blockedFraction = 0.0;
+  private long lastResize = 0;
+  
+  private long totalBlockedNanos = 0;
+  private long totalThrottledMillis = 0;
+  
+  public WriterMemoryController(long budget, long minBudget, long maxBudget, long maxLatencyMillis, boolean adaptive, double throttleThreshold,
+      long maxThrottleMillis) {
+    this.minBudget = Math.min(minBudget, budget);
+    this.maxBudget = Math.max(maxBudget, budget);
+    this.budget = budget;
+    this.maxLatencyMillis = Math.max(1, maxLatencyMillis);
+    this.adaptive = adaptive;
+    this.throttleThreshold = throttleThreshold;
+    this.maxThrottleMillis = maxThrottleMillis;
+  }
+  
+  /**
+   * Record a batch of bytes added to the writer, and how long addMutations took.
+   */
+  public synchronized void recordAdd(long bytes, long blockedNanos, long now) {
+    expire(now);
+    recent.addLast(new long[] {now, bytes, blockedNanos});
+    recentBytes += bytes;
+    recentBlockedNanos += blockedNanos;
+    totalBlockedNanos += blockedNanos;
+    
+    if (rateWindowStart < 0) {
+      rateWindowStart = now;
+    }
+    rateWindowBytes += bytes;
+    rateWindowBlockedNanos += blockedNanos;
+    long elapsed = now - rateWindowStart;
+    if (elapsed >= RATE_WINDOW_MILLIS) {
+      double rate = rateWindowBytes * 1000.0 / elapsed;
+      throughput = throughput == 0.0 ? rate : (throughput + rate) / 2;
+      blockedFraction = rateWindowBlockedNanos / 1e6 / elapsed;
+      rateWindowStart = now;
+      rateWindowBytes = 0;
+      rateWindowBlockedNanos = 0;
+    }
+  }
+  
+  /**
+   * Returns how long to pause before taking the next batch, or 0 if throttling is off, the writer hasn't blocked recently or it has room.
+   */
+  public synchronized long throttleMillis(long now) {
+    if (maxThrottleMillis <= 0) {
+      return 0;
+    }
+    expire(now);
+    if (recentBlockedNanos < maxLatencyMillis * 1000000L * BLOCKED_FRACTION_TO_THROTTLE) {
+      return 0;
+    }
+    double used = (double) Math.min(recentBytes, budget) / budget;
+    if (used <= throttleThreshold || throttleThreshold >= 1.0) {
+      return 0;
+    }
+    return Math.round(maxThrottleMillis * (used - throttleThreshold) / (1.0 - throttleThreshold));
+  }
+  
+  public synchronized void recordThrottle(long millis) {
+    totalThrottledMillis += millis;
+  }
+  
+  /**
+   * The budget the writer should have at the observed throughput, between the minimum and maximum budget.
+   */
+  public synchronized long targetBudget() {
+    long target = (long) (throughput * maxLatencyMillis / 1000.0 * 2);
+    if (blockedFraction > BLOCKED_FRACTION_TO_GROW) {
+      target = Math.max(target, budget * 2);
+    }
+    return Math.max(minBudget, Math.min(maxBudget, target));
+  }
+  
+  /**
+   * Returns true if the controller is adaptive, the budget hasn't changed recently, and the target budget is far enough from the current one to be worth
+   * replacing the writer.
+   */
+  public synchronized boolean shouldResize(long now) {
+    if (!adaptive || throughput == 0.0 || now - lastResize < RESIZE_INTERVAL_MILLIS) {
+      return false;
+    }
+    return Math.abs(targetBudget() - budget) > budget * RESIZE_HYSTERESIS;
+  }
+  
+  /**
+   * Record that the writer was replaced with one using the new budget. Everything added to the old writer was flushed when it was closed.
+   */
+  public synchronized void resized(long newBudget, long now) {
+    budget = newBudget;
+    lastResize = now;
+    recent.clear();
+    recentBytes = 0;
+    recentBlockedNanos = 0;
+  }
+  
+  public synchronized long getBudget() {
+    return budget;
+  }
+  
+  /**
+   * Bytes handed to the writer within the last maxLatency, capped at the budget. This is an upper bound on what the writer holds, not a measurement.
+   */
+  public synchronized long getRecentBytes() {
+    expire(System.currentTimeMillis());
+    return Math.min(recentBytes, budget);
+  }
+  
+  public synchronized long getBlockedMillis() {
+    return totalBlockedNanos / 1000000L;
+  }
+  
+  public synchronized long getThrottledMillis() {
+    return totalThrottledMillis;
+  }
+  
+  public synchronized double getThroughput() {
+    return throughput;
+  }
+  
+  private void expire(long now) {
+    while (!recent.isEmpty() && now - recent.peekFirst()[0] >= maxLatencyMillis) {
+      long[] expired = recent.removeFirst();
+      recentBytes -= expired[1];
+      recentBlockedNanos -= expired[2];
+    }
+  }
+}
@@ -0,0 +1,287 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.io.FileWriter;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.flume.Channel;
+import org.apache.flume.ChannelException;
+import org.apache.flume.Context;
+import org.apache.flume.Sink.Status;
+import org.apache.flume.Transaction;
+import org.apache.flume.channel.MemoryChannel;
+import org.apache.flume.conf.Configurables;
+
+/**
+ * End to end load driver for the AccumuloSink. Producer threads fill a MemoryChannel with events from a SyntheticEventGenerator while the real sink drains it.
+ * By default the sink's BatchWriter is a StubBatchWriter that drops everything, since a MockInstance table keeps every key on the heap and would end up
+ * measuring itself. After a warmup, throughput, process() latency, channel depth and GC time are measured for a fixed duration and written out as a JSON
+ * report, so runs against different builds can be compared.
+ *
+ * Options are passed as key=value arguments:
+ * <ul>
+ * <li>durationSeconds, warmupSeconds - length of the measured run and of the warmup before it</li>
+ * <li>producers - number of threads putting events on the channel</li>
+ * <li>channel.capacity, channel.transactionCapacity - MemoryChannel settings, which bound the channel depth</li>
+ * <li>mockTable - if true, write to a MockInstance table instead of dropping the mutations</li>
+ * <li>report - file to write the report to, in addition to stdout</li>
+ * <li>generator.* - SyntheticEventGenerator settings, e.g. generator.bodySizes=100:80,2000:20</li>
+ * <li>sink.* - AccumuloSink settings, e.g. sink.batchSize=500 or sink.accumulo.serializer=...</li>
+ * </ul>
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.clearedgeit.accumulo.flume.AccumuloSinkLoadHarness -Dexec.args="durationSeconds=60"
+ * </pre>
+ */
+
+public class AccumuloSinkLoadHarness {
+  
+  private static final String TABLE = "load_test";
+  private static final int PUT_BATCH = 100;
+  private static final long SAMPLE_MILLIS = 100;
+  
+  public static void main(String[] args) throws Exception {
+    Map<String,String> options = new TreeMap<String,String>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1) {
+        throw new IllegalArgumentException("Expected key=value, got " + arg);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    Context context = new Context(options);
+    
+    String report = new AccumuloSinkLoadHarness().run(context);
+    System.out.println(report);
+    String reportFile = context.getString("report");
+    if (reportFile != null) {
+      Writer out = new FileWriter(reportFile);
+      try {
+        out.write(report);
+        out.write('\n');
+      } finally {
+        out.close();
+      }
+    }
+  }
+  
+  public String run(Context context) throws Exception {
+    long durationMillis = context.getLong("durationSeconds", 60L) * 1000;
+    long warmupMillis = context.getLong("warmupSeconds", 10L) * 1000;
+    int producerCount = context.getInteger("producers", 1);
+    final boolean mockTable = context.getBoolean("mockTable", false);
+    
+    Connector conn = new MockInstance("load-harness").getConnector("user", "pass".getBytes());
+    if (!conn.tableOperations().exists(TABLE)) {
+      conn.tableOperations().create(TABLE);
+    }
+    
+    Context channelContext = new Context(context.getSubProperties("channel."));
+    if (channelContext.getString("capacity") == null) {
+      channelContext.put("capacity", "10000");
+    }
+    if (channelContext.getString("transactionCapacity") == null) {
+      channelContext.put("transactionCapacity", "1000");
+    }
+    final Channel channel = new MemoryChannel();
+    channel.setName("load-harness-channel");
+    Configurables.configure(channel, channelContext);
+    channel.start();
+    
+    int capacity = channelContext.getInteger("capacity", 10000);
+    
+    Context sinkContext = new Context(context.getSubProperties("sink."));
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, TABLE);
+    final AccumuloSink sink = new AccumuloSink(conn) {
+      @Override
+      BatchWriter createBatchWriter(long memory) throws TableNotFoundException {
+        return mockTable ? super.createBatchWriter(memory) : new StubBatchWriter(memory);
+      }
+    };
+    sink.setName("load-harness-sink");
+    Configurables.configure(sink, sinkContext);
+    sink.setChannel(channel);
+    sink.start();
+    
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final AtomicBoolean measuring = new AtomicBoolean(false);
+    final LatencyHistogram processLatency = new LatencyHistogram();
+    final AtomicLong channelFullCount = new AtomicLong();
+    final AtomicLong putCount = new AtomicLong();
+    
+    Thread[] producers = new Thread[producerCount];
+    for (int p = 0; p < producerCount; p++) {
+      Context generatorContext = new Context(context.getSubProperties("generator."));
+      generatorContext.put("seed", Long.toString(generatorContext.getLong("seed", 42L) + p));
+      final SyntheticEventGenerator generator = new SyntheticEventGenerator(generatorContext);
+      producers[p] = new Thread("load-harness-producer-" + p) {
+        @Override
+        public void run() {
+          while (running.get()) {
+            Transaction txn = channel.getTransaction();
+            txn.begin();
+            try {
+              for (int i = 0; i < PUT_BATCH; i++) {
+                channel.put(generator.next());
+              }
+              txn.commit();
+              putCount.addAndGet(PUT_BATCH);
+            } catch (ChannelException e) {
+              // channel is full, let the sink catch up
+              txn.rollback();
+              channelFullCount.incrementAndGet();
+              pause(1);
+            } finally {
+              txn.close();
+            }
+          }
+        }
+      };
+      producers[p].start();
+    }
+    
+    Thread sinkThread = new Thread("load-harness-sink") {
+      @Override
+      public void run() {
+        while (running.get()) {
+          long before = sink.getMetrics().getEventCount();
+          long start = System.nanoTime();
+          Status status;
+          try {
+            status = sink.process();
+          } catch (Exception e) {
+            status = Status.BACKOFF;
+          }
+          long micros = (System.nanoTime() - start) / 1000;
+          if (measuring.get() && sink.getMetrics().getEventCount() > before) {
+            processLatency.record(micros);
+          }
+          if (status == Status.BACKOFF) {
+            pause(1);
+          }
+        }
+      }
+    };
+    sinkThread.start();
+    
+    Thread.sleep(warmupMillis);
+    
+    AccumuloSinkMetrics metrics = sink.getMetrics();
+    long startEvents = metrics.getEventCount();
+    long startMutations = metrics.getMutationCount();
+    long startBytes = metrics.getMutationBytes();
+    long startGcMillis = gcMillis();
+    long startGcCount = gcCount();
+    long startFull = channelFullCount.get();
+    long start = System.nanoTime();
+    measuring.set(true);
+    
+    // events committed to the channel and not yet committed by the sink
+    long depthSamples = 0;
+    long depthTotal = 0;
+    long depthMax = 0;
+    long end = start + durationMillis * 1000000;
+    while (System.nanoTime() < end) {
+      long depth = Math.max(0, putCount.get() - metrics.getEventCount());
+      depthSamples++;
+      depthTotal += depth;
+      depthMax = Math.max(depthMax, depth);
+      Thread.sleep(Math.max(1, Math.min(SAMPLE_MILLIS, (end - System.nanoTime()) / 1000000)));
+    }
+    double depthMean = depthSamples > 0 ? (double) depthTotal / depthSamples : 0;
+    
+    measuring.set(false);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long events = metrics.getEventCount() - startEvents;
+    long mutations = metrics.getMutationCount() - startMutations;
+    long bytes = metrics.getMutationBytes() - startBytes;
+    long gcMillis = gcMillis() - startGcMillis;
+    long gcCount = gcCount() - startGcCount;
+    long full = channelFullCount.get() - startFull;
+    
+    running.set(false);
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    sinkThread.join();
+    sink.stop();
+    channel.stop();
+    
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"options\": {");
+    String separator = "";
+    for (Map.Entry<String,String> option : context.getParameters().entrySet()) {
+      json.append(separator).append("\n    ").append(quote(option.getKey())).append(": ").append(quote(option.getValue()));
+      separator = ",";
+    }
+    json.append("\n  },\n");
+    json.append("  \"seconds\": ").append(format(seconds)).append(",\n");
+    json.append("  \"events\": ").append(events).append(",\n");
+    json.append("  \"eventsPerSecond\": ").append(format(events / seconds)).append(",\n");
+    json.append("  \"mutationsPerSecond\": ").append(format(mutations / seconds)).append(",\n");
+    json.append("  \"bytesPerSecond\": ").append(format(bytes / seconds)).append(",\n");
+    json.append("  \"channelFullCount\": ").append(full).append(",\n");
+    json.append("  \"channelDepth\": {");
+    json.append("\"capacity\": ").append(capacity);
+    json.append(", \"samples\": ").append(depthSamples);
+    json.append(", \"mean\": ").append(format(depthMean));
+    json.append(", \"max\": ").append(depthMax);
+    json.append(", \"meanFill\": ").append(format(depthMean / capacity));
+    json.append(", \"maxFill\": ").append(format((double) depthMax / capacity)).append("},\n");
+    json.append("  \"processLatencyMicros\": {");
+    json.append("\"count\": ").append(processLatency.getCount());
+    json.append(", \"mean\": ").append(format(processLatency.getMean()));
+    json.append(", \"p50\": ").append(processLatency.getPercentile(50));
+    json.append(", \"p90\": ").append(processLatency.getPercentile(90));
+    json.append(", \"p99\": ").append(processLatency.getPercentile(99));
+    json.append(", \"p999\": ").append(processLatency.getPercentile(99.9));
+    json.append(", \"max\": ").append(processLatency.getMax()).append("},\n");
+    json.append("  \"gcMillis\": ").append(gcMillis).append(",\n");
+    json.append("  \"gcCount\": ").append(gcCount).append(",\n");
+    json.append("  \"gcShare\": ").append(format(gcMillis / (seconds * 1000))).append("\n");
+    json.append("}");
+    return json.toString();
+  }
+  
+  private static void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  
+  private static long gcMillis() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionTime());
+    }
+    return total;
+  }
+  
+  private static long gcCount() {
+    long total = 0;
+    for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+      total += Math.max(0, gc.getCollectionCount());
+    }
+    return total;
+  }
+  
+  private static String format(double value) {
+    return String.format(Locale.US, "%.3f", value);
+  }
+  
+  private static String quote(String value) {
+    return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+  }
+}
@@ -2,15 +2,28 @@ package com.clearedgeit.accumulo.flume;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Map.Entry;
 
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.Connector;
 import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.client.mock.MockInstance;
 import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.flume.Channel;
@@ -18,11 +31,15 @@ import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.Sink;
 import org.apache.flume.SinkFactory;
+import org.apache.flume.Sink.Status;
 import org.apache.flume.Transaction;
 import org.apache.flume.channel.MemoryChannel;
 import org.apache.flume.conf.Configurables;
 import org.apache.flume.event.EventBuilder;
 import org.apache.flume.sink.DefaultSinkFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -176,4 +193,577 @@ public class AccumuloSinkTest {
     conn.tableOperations().delete(tableName);
   }
   
+  /**
+   * Send a stream of events that all share one rowID through a sink with salting enabled, and make sure the hot row was spread over the salt buckets and
+   * that the salt metadata was written to the original row.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testHotRowSalting() throws Exception {
+    
+    String tableName = "salt_table";
+    
+    Connector conn = mockInstance.getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, tableName);
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_ENABLED, "true");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_THRESHOLD, "0.5");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_MIN_MUTATIONS, "10");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_SALT_BUCKETS, "4");
+    
+    AccumuloSink sink = new AccumuloSink(conn);
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for (int i = 0; i < 20; i++) {
+      Map<String,String> headers = new HashMap<String,String>();
+      headers.put("rowID", "device42");
+      headers.put("seq", Integer.toString(i));
+      channel.put(EventBuilder.withBody(("event " + i).getBytes(), headers));
+    }
+    tx.commit();
+    tx.close();
+    sink.process();
+    
+    String[] hotRows = sink.getMetrics().getHotRows();
+    Assert.assertEquals(1, hotRows.length);
+    Assert.assertTrue(hotRows[0].startsWith("device42="));
+    Assert.assertEquals(1, sink.getMetrics().getSaltedRowCount());
+    sink.stop();
+    
+    Scanner scanner = conn.createScanner(tableName, new Authorizations());
+    boolean foundMarker = false;
+    Set<String> saltedRows = new HashSet<String>();
+    for (Entry<Key,Value> entry : scanner) {
+      String row = entry.getKey().getRow().toString();
+      String cf = entry.getKey().getColumnFamily().toString();
+      if (cf.equals(AccumuloSinkConfigurationConstants.SALT_METADATA_COLUMN_FAMILY)) {
+        Assert.assertEquals("device42", row);
+        Assert.assertEquals(AccumuloSinkConfigurationConstants.SALT_METADATA_COLUMN_QUALIFIER, entry.getKey().getColumnQualifier().toString());
+        Assert.assertEquals("4", new String(entry.getValue().get()));
+        foundMarker = true;
+      } else if (!row.equals("device42")) {
+        saltedRows.add(row);
+      }
+    }
+    
+    Assert.assertTrue("salt metadata was not written", foundMarker);
+    Assert.assertEquals(4, saltedRows.size());
+    for (String row : saltedRows) {
+      Assert.assertTrue("unexpected row: " + row, row.matches("[0-3]_device42"));
+    }
+    
+    conn.tableOperations().delete(tableName);
+  }
+  
+  /**
+   * Roll back the batch that first salts a hot row, and make sure the salt metadata is written with the batch that is finally committed, with an empty
+   * visibility so readers that can't see the row's data can still find it.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testHotRowSaltingRollback() throws Exception {
+    
+    String tableName = "salt_rollback_table";
+    
+    Connector conn = mockInstance.getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, tableName);
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_SERIALIZER, FailOnceSerializer.class.getName());
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_ENABLED, "true");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_THRESHOLD, "0.5");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_MIN_MUTATIONS, "10");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_HOT_ROWS_SALT_BUCKETS, "4");
+    FailOnceSerializer.failed = false;
+    
+    AccumuloSink sink = new AccumuloSink(conn);
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for (int i = 0; i < 20; i++) {
+      Map<String,String> headers = new HashMap<String,String>();
+      headers.put("rowID", "device42");
+      headers.put("columnVisibility", "secret");
+      channel.put(EventBuilder.withBody((i == 15 ? FailOnceSerializer.FAIL : "event " + i).getBytes(), headers));
+    }
+    tx.commit();
+    tx.close();
+    
+    // the row turns hot before the failing event, so the first batch carries the marker and is rolled back
+    Assert.assertEquals(Status.BACKOFF, sink.process());
+    Assert.assertTrue(FailOnceSerializer.failed);
+    Assert.assertEquals(0, sink.getMetrics().getSaltedRowCount());
+    
+    sink.process();
+    Assert.assertEquals(1, sink.getMetrics().getSaltedRowCount());
+    sink.stop();
+    
+    // without the secret authorization, only the marker is visible
+    Scanner scanner = conn.createScanner(tableName, new Authorizations());
+    int count = 0;
+    for (Entry<Key,Value> entry : scanner) {
+      Assert.assertEquals("device42", entry.getKey().getRow().toString());
+      Assert.assertEquals(AccumuloSinkConfigurationConstants.SALT_METADATA_COLUMN_FAMILY, entry.getKey().getColumnFamily().toString());
+      Assert.assertEquals("", entry.getKey().getColumnVisibility().toString());
+      Assert.assertEquals("4", new String(entry.getValue().get()));
+      count++;
+    }
+    Assert.assertEquals(1, count);
+    
+    conn.tableOperations().delete(tableName);
+  }
+  
+  /**
+   * Throws on the first event with the body FAIL, so the sink rolls back the batch it is in.
+   */
+  public static class FailOnceSerializer extends SimpleAccumuloEventSerializer {
+    
+    static final String FAIL = "fail";
+    static boolean failed = false;
+    
+    @Override
+    public void set(Event event) {
+      if (!failed && FAIL.equals(new String(event.getBody()))) {
+        failed = true;
+        throw new RuntimeException("failing the batch");
+      }
+      // the serializer removes the rowID and visibility headers, so give it a copy
+      // that leaves the event intact for redelivery after the rollback
+      super.set(EventBuilder.withBody(event.getBody(), new HashMap<String,String>(event.getHeaders())));
+    }
+  }
+  
+  /**
+   * Roll back a batch going through the PackingAccumuloEventSerializer, and make sure the redelivered events are still packed under their visibility.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testPackingRollbackKeepsVisibility() throws Exception {
+    
+    String tableName = "packing_rollback_table";
+    
+    Connector conn = mockInstance.getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, tableName);
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_SERIALIZER, FailOncePackingSerializer.class.getName());
+    FailOncePackingSerializer.failed = false;
+    
+    AccumuloSink sink = new AccumuloSink(conn);
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for (int i = 0; i < 10; i++) {
+      Map<String,String> headers = new HashMap<String,String>();
+      headers.put("columnVisibility", "secret");
+      headers.put("seq", Integer.toString(i));
+      channel.put(EventBuilder.withBody((i == 5 ? FailOnceSerializer.FAIL : "event " + i).getBytes(), headers));
+    }
+    tx.commit();
+    tx.close();
+    
+    Assert.assertEquals(Status.BACKOFF, sink.process());
+    Assert.assertTrue(FailOncePackingSerializer.failed);
+    sink.process();
+    Assert.assertEquals(10, sink.getMetrics().getEventCount());
+    sink.stop();
+    
+    // nothing is visible without the secret authorization
+    Assert.assertFalse(conn.createScanner(tableName, new Authorizations()).iterator().hasNext());
+    
+    Set<String> seen = new HashSet<String>();
+    for (Entry<Key,Value> entry : conn.createScanner(tableName, new Authorizations("secret"))) {
+      Assert.assertEquals("secret", entry.getKey().getColumnVisibility().toString());
+      for (Event event : PackedEventCodec.decode(entry.getValue().get())) {
+        Assert.assertFalse(event.getHeaders().containsKey("columnVisibility"));
+        seen.add(event.getHeaders().get("seq"));
+      }
+    }
+    Assert.assertEquals(10, seen.size());
+    
+    conn.tableOperations().delete(tableName);
+  }
+  
+  /**
+   * Throws on the first event with the body FAIL, without copying the event, so the rolled back events are redelivered exactly as the serializer left them.
+   */
+  public static class FailOncePackingSerializer extends PackingAccumuloEventSerializer {
+    
+    static boolean failed = false;
+    
+    @Override
+    public void set(Event event) {
+      if (!failed && FailOnceSerializer.FAIL.equals(new String(event.getBody()))) {
+        failed = true;
+        throw new RuntimeException("failing the batch");
+      }
+      super.set(event);
+    }
+  }
+  
+  /**
+   * Run the sink in bulk mode against a local directory, and make sure committed batches are imported into the table.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testBulkIngest() throws Exception {
+    
+    String tableName = "bulk_sink_table";
+    
+    Connector conn = mockInstance.getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    File bulkDir = File.createTempFile("bulk-sink-test", "");
+    bulkDir.delete();
+    
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, tableName);
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_BULK_DIRECTORY, bulkDir.toURI().toString());
+    // import after every batch
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_BULK_IMPORT_BYTES, "1");
+    
+    // a MockInstance can't bulk import
+    final List<MockImportBulkIngestWriter> bulkWriters = new ArrayList<MockImportBulkIngestWriter>();
+    AccumuloSink sink = new AccumuloSink(conn) {
+      @Override
+      BulkIngestWriter createBulkIngestWriter(Connector conn, String tableName, Path dir, long importInterval, long importBytes) throws IOException {
+        MockImportBulkIngestWriter bulkWriter = new MockImportBulkIngestWriter(conn, tableName, dir, importInterval, importBytes);
+        bulkWriters.add(bulkWriter);
+        return bulkWriter;
+      }
+    };
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    
+    try {
+      Transaction tx = channel.getTransaction();
+      tx.begin();
+      for (int i = 0; i < 10; i++) {
+        Map<String,String> headers = new HashMap<String,String>();
+        headers.put("rowID", "row" + i);
+        channel.put(EventBuilder.withBody(("event " + i).getBytes(), headers));
+      }
+      tx.commit();
+      tx.close();
+      sink.process();
+      Assert.assertEquals(10, sink.getMetrics().getEventCount());
+      
+      // the batch was imported by process(), before the sink is stopped
+      Assert.assertEquals(1, bulkWriters.size());
+      Assert.assertEquals(1, bulkWriters.get(0).imports.size());
+      Set<String> rows = new HashSet<String>();
+      for (Entry<Key,Value> entry : conn.createScanner(tableName, new Authorizations())) {
+        Assert.assertEquals("body", entry.getKey().getColumnQualifier().toString());
+        rows.add(entry.getKey().getRow().toString());
+      }
+      Assert.assertEquals(10, rows.size());
+      sink.stop();
+      
+      // nothing is left staged, and nothing failed
+      for (File file : bulkDir.listFiles()) {
+        Assert.assertFalse("unexpected " + file, file.getName().startsWith("failures-"));
+        if (file.isDirectory()) {
+          Assert.assertEquals(0, file.list().length);
+        }
+      }
+    } finally {
+      FileSystem.getLocal(new Configuration()).delete(new Path(bulkDir.toURI()), true);
+      conn.tableOperations().delete(tableName);
+    }
+  }
+  
+  /**
+   * AccumuloSink whose BatchWriters are StubBatchWriters, which block in addMutations for blockMillis. A writer only takes mutations once every writer it
+   * replaced has been closed.
+   */
+  static class StubWriterSink extends AccumuloSink {
+    final List<StubBatchWriter> writers = new ArrayList<StubBatchWriter>();
+    long blockMillis = 0;
+    
+    StubWriterSink(Connector conn) throws AccumuloException, AccumuloSecurityException {
+      super(conn);
+    }
+    
+    @Override
+    BatchWriter createBatchWriter(long memory) throws TableNotFoundException {
+      final int replaced = writers.size();
+      StubBatchWriter writer = new StubBatchWriter(memory) {
+        @Override
+        public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+          for (StubBatchWriter earlier : writers.subList(0, replaced)) {
+            Assert.assertTrue("a replaced writer was still open", earlier.isClosed());
+          }
+          super.addMutations(iterable);
+        }
+      };
+      writer.setBlockMillis(blockMillis);
+      writers.add(writer);
+      return writer;
+    }
+  }
+  
+  private StubWriterSink startStubWriterSink(Context sinkContext, long blockMillis) throws Exception {
+    StubWriterSink sink = new StubWriterSink(mockInstance.getConnector("user", "pass".getBytes()));
+    sink.blockMillis = blockMillis;
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, "stub_table");
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    return sink;
+  }
+  
+  private void putEvents(Channel channel, int count, int bodySize) {
+    byte[] body = new byte[bodySize];
+    Arrays.fill(body, (byte) 'x');
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for (int i = 0; i < count; i++) {
+      channel.put(EventBuilder.withBody(body));
+    }
+    tx.commit();
+    tx.close();
+  }
+  
+  /**
+   * Feed a sink with throttling enabled far more bytes per maxLatency than its BatchWriter memory, and make sure it doesn't throttle while the writer never
+   * blocks.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testHealthyFeedIsNotThrottled() throws Exception {
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_MAX_MEMORY, "10000");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_MAX_LATENCY, "60000");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_MAX_THROTTLE, "100");
+    StubWriterSink sink = startStubWriterSink(sinkContext, 0);
+    
+    for (int batch = 0; batch < 5; batch++) {
+      putEvents(sink.getChannel(), 100, 1000);
+      Assert.assertEquals(Status.READY, sink.process());
+    }
+    
+    AccumuloSinkMetrics metrics = sink.getMetrics();
+    Assert.assertEquals(500, metrics.getEventCount());
+    Assert.assertEquals(500, sink.writers.get(0).getAddedCount());
+    // the recent bytes are only an upper bound, capped at the budget: far more than the budget was
+    // handed to the writer within maxLatency, but it never blocked, so it was keeping up
+    Assert.assertEquals(10000, metrics.getWriterRecentBytes());
+    Assert.assertEquals(0, metrics.getThrottledMillis());
+    sink.stop();
+  }
+  
+  /**
+   * Once addMutations blocks, a sink that keeps handing the writer more than its memory should pause between batches.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testBlockedWriterIsThrottled() throws Exception {
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_MAX_MEMORY, "10000");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_MAX_LATENCY, "1000");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_MAX_THROTTLE, "100");
+    // 2% of maxLatency per batch
+    StubWriterSink sink = startStubWriterSink(sinkContext, 20);
+    
+    putEvents(sink.getChannel(), 100, 1000);
+    Assert.assertEquals(Status.READY, sink.process());
+    AccumuloSinkMetrics metrics = sink.getMetrics();
+    Assert.assertTrue(metrics.getWriterBlockedMillis() >= 20);
+    Assert.assertEquals(0, metrics.getThrottledMillis());
+    
+    putEvents(sink.getChannel(), 100, 1000);
+    Assert.assertEquals(Status.READY, sink.process());
+    Assert.assertTrue(metrics.getThrottledMillis() > 0);
+    Assert.assertEquals(200, metrics.getEventCount());
+    sink.stop();
+  }
+  
+  /**
+   * Make sure a resize happens between batches: the old writer is closed, and so flushed, before the next batch is taken, and the new writer gets the target
+   * budget.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testResizeWriter() throws Exception {
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_ADAPTIVE_MEMORY, "true");
+    StubWriterSink sink = startStubWriterSink(sinkContext, 0);
+    
+    // resize to the target when asked, instead of waiting for a throughput measurement
+    final long target = 2000000L;
+    final boolean[] resize = {false};
+    sink.setMemoryController(new WriterMemoryController(1000000L, 1000000L, 4000000L, 1000L, true, 0.8, 0) {
+      @Override
+      public synchronized boolean shouldResize(long now) {
+        return resize[0] && getBudget() != target;
+      }
+      
+      @Override
+      public synchronized long targetBudget() {
+        return target;
+      }
+    });
+    
+    putEvents(sink.getChannel(), 10, 10);
+    sink.process();
+    Assert.assertEquals(1, sink.writers.size());
+    StubBatchWriter old = sink.writers.get(0);
+    Assert.assertEquals(10, old.getAddedCount());
+    Assert.assertFalse(old.isClosed());
+    
+    resize[0] = true;
+    putEvents(sink.getChannel(), 1, 10);
+    sink.process();
+    
+    AccumuloSinkMetrics metrics = sink.getMetrics();
+    Assert.assertEquals(target, metrics.getWriterBudgetBytes());
+    Assert.assertEquals(11, metrics.getEventCount());
+    
+    // the old writer was closed with only the first batch in it, and the new one took the next batch
+    Assert.assertEquals(2, sink.writers.size());
+    Assert.assertTrue(old.isClosed());
+    Assert.assertEquals(10, old.getFlushedCount());
+    Assert.assertEquals(10, old.getAddedCount());
+    StubBatchWriter resized = sink.writers.get(1);
+    Assert.assertEquals(target, resized.getMaxMemory());
+    Assert.assertEquals(1, resized.getAddedCount());
+    sink.stop();
+    Assert.assertTrue(resized.isClosed());
+  }
+  
+  /**
+   * Make sure event times from the headers end up as key timestamps, and that the sink tracks the commit lag and watermark.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testEventTimeLag() throws Exception {
+    
+    String tableName = "lag_table";
+    
+    Connector conn = mockInstance.getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, tableName);
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_HEADER, "timestamp");
+    
+    AccumuloSink sink = new AccumuloSink(conn);
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    
+    // events that are one and two minutes old
+    long now = System.currentTimeMillis();
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for (int i = 1; i <= 2; i++) {
+      Map<String,String> headers = new HashMap<String,String>();
+      headers.put("timestamp", Long.toString(now - i * 60000L));
+      channel.put(EventBuilder.withBody(("event " + i).getBytes(), headers));
+    }
+    tx.commit();
+    tx.close();
+    sink.process();
+    
+    AccumuloSinkMetrics metrics = sink.getMetrics();
+    Assert.assertEquals(now - 60000L, metrics.getWatermark());
+    Assert.assertTrue(metrics.getWatermarkLagMillis() >= 60000L);
+    Assert.assertTrue(metrics.getEventTimeLagMillisMax() >= 120000L);
+    Assert.assertTrue(metrics.getEventTimeLagMillisP50() >= 60000L);
+    sink.stop();
+    
+    Scanner scanner = conn.createScanner(tableName, new Authorizations());
+    int count = 0;
+    for (Entry<Key,Value> entry : scanner) {
+      long timestamp = entry.getKey().getTimestamp();
+      Assert.assertTrue("unexpected timestamp " + timestamp, timestamp == now - 60000L || timestamp == now - 120000L);
+      count++;
+    }
+    Assert.assertTrue(count > 0);
+    
+    conn.tableOperations().delete(tableName);
+  }
+  
+  /**
+   * The lag should be sampled once per event, even when a serializer packs many events into a few mutations.
+   * 
+   * @throws Exception
+   */
+  @Test
+  public void testEventTimeLagPerEvent() throws Exception {
+    
+    String tableName = "lag_packed_table";
+    
+    Connector conn = mockInstance.getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    Context sinkContext = new Context();
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TABLE, tableName);
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_SERIALIZER, PackingAccumuloEventSerializer.class.getName());
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_PACKING_SHARDS, "1");
+    sinkContext.put(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_HEADER, "timestamp");
+    
+    AccumuloSink sink = new AccumuloSink(conn);
+    Configurables.configure(sink, sinkContext);
+    Channel channel = new MemoryChannel();
+    Configurables.configure(channel, new Context());
+    sink.setChannel(channel);
+    sink.start();
+    
+    long now = System.currentTimeMillis();
+    Transaction tx = channel.getTransaction();
+    tx.begin();
+    for (int i = 0; i < 10; i++) {
+      Map<String,String> headers = new HashMap<String,String>();
+      headers.put("timestamp", Long.toString(now - 60000L));
+      channel.put(EventBuilder.withBody(("event " + i).getBytes(), headers));
+    }
+    tx.commit();
+    tx.close();
+    sink.process();
+    
+    AccumuloSinkMetrics metrics = sink.getMetrics();
+    Assert.assertEquals(1, metrics.getMutationCount());
+    Assert.assertEquals(10, metrics.getEventTimeLagCount());
+    Assert.assertEquals(now - 60000L, metrics.getWatermark());
+    sink.stop();
+    
+    conn.tableOperations().delete(tableName);
+  }
+  
 }
@@ -0,0 +1,236 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.conf.AccumuloConfiguration;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.file.FileOperations;
+import org.apache.accumulo.core.file.FileSKVIterator;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Testing to make sure the BulkIngestWriter spills sorted RFiles, partitioned by the table splits, to a local filesystem. Imports go through
+ * MockImportBulkIngestWriter, since a MockInstance can't bulk import.
+ */
+
+public class BulkIngestWriterTest {
+  
+  private String tableName = "bulk_table";
+  private Connector conn;
+  private File workDir;
+  private FileSystem fs;
+  private MockImportBulkIngestWriter writer;
+  
+  @Before
+  public void setUp() throws Exception {
+    conn = new MockInstance("bulk-instance").getConnector("user", "pass".getBytes());
+    conn.tableOperations().create(tableName);
+    
+    workDir = File.createTempFile("bulk-ingest-test", "");
+    workDir.delete();
+    fs = FileSystem.getLocal(new Configuration());
+    
+    // never import on its own, the test checks the staged files
+    writer = new MockImportBulkIngestWriter(conn, tableName, new Path(workDir.toURI()), Long.MAX_VALUE, Long.MAX_VALUE);
+    writer.start();
+  }
+  
+  @After
+  public void tearDown() throws Exception {
+    fs.delete(new Path(workDir.toURI()), true);
+    conn.tableOperations().delete(tableName);
+  }
+  
+  private Mutation createMutation(String row, String value) {
+    Mutation m = new Mutation(new Text(row));
+    m.put(new Text("flume"), new Text("body"), new ColumnVisibility(), 1000L, new Value(value.getBytes()));
+    return m;
+  }
+  
+  private List<String> readRows(Path file) throws Exception {
+    List<String> rows = new ArrayList<String>();
+    FileSKVIterator reader = FileOperations.getInstance().openReader(file.toString(), true, fs, fs.getConf(), AccumuloConfiguration.getDefaultConfiguration());
+    try {
+      while (reader.hasTop()) {
+        rows.add(reader.getTopKey().getRow().toString());
+        reader.next();
+      }
+    } finally {
+      reader.close();
+    }
+    return rows;
+  }
+  
+  private List<String> scanRows() throws Exception {
+    List<String> rows = new ArrayList<String>();
+    for (Entry<Key,Value> entry : conn.createScanner(tableName, new Authorizations())) {
+      rows.add(entry.getKey().getRow().toString());
+    }
+    return rows;
+  }
+  
+  @Test
+  public void testSpillPartitionsBySplits() throws Exception {
+    writer.setSplits(Arrays.asList(new Text("m")));
+    Assert.assertEquals(0, writer.tabletFor(new Text("a")));
+    Assert.assertEquals(0, writer.tabletFor(new Text("m")));
+    Assert.assertEquals(1, writer.tabletFor(new Text("n")));
+    
+    writer.addMutations(Arrays.asList(createMutation("z", "1"), createMutation("b", "2"), createMutation("m", "3"), createMutation("a", "4")));
+    writer.spill();
+    
+    Assert.assertEquals(2, writer.getStagedFiles());
+    Assert.assertTrue(writer.getStagedBytes() > 0);
+    
+    FileStatus[] files = fs.listStatus(writer.getStagingDir());
+    Assert.assertEquals(2, files.length);
+    Arrays.sort(files);
+    Assert.assertEquals(Arrays.asList("a", "b", "m"), readRows(files[0].getPath()));
+    Assert.assertEquals(Arrays.asList("z"), readRows(files[1].getPath()));
+    
+    // spilling an empty run writes nothing
+    writer.spill();
+    Assert.assertEquals(2, writer.getStagedFiles());
+    Assert.assertFalse(writer.maybeImport());
+  }
+  
+  @Test
+  public void testDiscard() throws Exception {
+    writer.addMutations(Arrays.asList(createMutation("a", "1")));
+    writer.discard();
+    writer.spill();
+    Assert.assertEquals(0, writer.getStagedFiles());
+    Assert.assertEquals(0, fs.listStatus(writer.getStagingDir()).length);
+  }
+  
+  /**
+   * Once enough bytes are staged, maybeImport() should import them into the table and start a new staging directory.
+   */
+  @Test
+  public void testMaybeImport() throws Exception {
+    MockImportBulkIngestWriter importing = new MockImportBulkIngestWriter(conn, tableName, new Path(new Path(workDir.toURI()), "importing"), Long.MAX_VALUE, 1L);
+    importing.start();
+    Assert.assertFalse(importing.maybeImport());
+    
+    importing.addMutations(Arrays.asList(createMutation("b", "1"), createMutation("a", "2")));
+    importing.spill();
+    Path staged = importing.getStagingDir();
+    Assert.assertTrue(importing.maybeImport());
+    
+    Assert.assertEquals(Arrays.asList("a", "b"), scanRows());
+    Assert.assertFalse(fs.exists(staged));
+    Assert.assertFalse(staged.equals(importing.getStagingDir()));
+    Assert.assertEquals(0, importing.getStagedFiles());
+    Assert.assertEquals(1, importing.imports.size());
+  }
+  
+  /**
+   * Files staged for the same tablet by different spills should be merged into one file per tablet before the import, keeping the latest value of a key
+   * written twice.
+   */
+  @Test
+  public void testImportMergesTabletFiles() throws Exception {
+    writer.setSplits(Arrays.asList(new Text("m")));
+    for (int i = 0; i < 3; i++) {
+      writer.addMutations(Arrays.asList(createMutation("a" + i, "1"), createMutation("z" + i, "1"), createMutation("k", Integer.toString(i))));
+      writer.spill();
+    }
+    Assert.assertEquals(6, writer.getStagedFiles());
+    
+    writer.importNow();
+    
+    Assert.assertEquals(1, writer.imports.size());
+    List<String> imported = writer.imports.get(0);
+    Assert.assertEquals(2, imported.size());
+    Assert.assertTrue(imported.get(0), imported.get(0).endsWith("-00000.rf"));
+    Assert.assertTrue(imported.get(1), imported.get(1).endsWith("-00001.rf"));
+    
+    Assert.assertEquals(Arrays.asList("a0", "a1", "a2", "k", "z0", "z1", "z2"), scanRows());
+    for (Entry<Key,Value> entry : conn.createScanner(tableName, new Authorizations())) {
+      if (entry.getKey().getRow().toString().equals("k")) {
+        Assert.assertEquals("2", entry.getValue().toString());
+      }
+    }
+  }
+  
+  /**
+   * An import that throws should leave no failures directory behind and keep the files staged, and maybeImport() should wait before trying again.
+   */
+  @Test
+  public void testFailedImport() throws Exception {
+    MockImportBulkIngestWriter failing = new MockImportBulkIngestWriter(conn, tableName, new Path(new Path(workDir.toURI()), "failing"), Long.MAX_VALUE, 1L);
+    failing.start();
+    failing.fail = true;
+    
+    failing.addMutations(Arrays.asList(createMutation("a", "1")));
+    failing.spill();
+    Path staged = failing.getStagingDir();
+    try {
+      failing.maybeImport();
+      Assert.fail("import should have failed");
+    } catch (AccumuloException e) {
+      // expected
+    }
+    
+    for (FileStatus status : fs.listStatus(new Path(new Path(workDir.toURI()), "failing"))) {
+      Assert.assertFalse("unexpected " + status.getPath(), status.getPath().getName().startsWith("failures-"));
+    }
+    Assert.assertTrue(fs.exists(staged));
+    Assert.assertEquals(staged, failing.getStagingDir());
+    Assert.assertEquals(1, failing.getStagedFiles());
+    
+    // backs off, instead of retrying on every batch
+    failing.fail = false;
+    Assert.assertFalse(failing.maybeImport());
+    Assert.assertTrue(failing.imports.isEmpty());
+    
+    // an explicit import still goes through
+    failing.importNow();
+    Assert.assertEquals(Arrays.asList("a"), scanRows());
+    Assert.assertFalse(fs.exists(staged));
+  }
+  
+  /**
+   * Files staged by a writer that never closed should be imported when the next writer starts, without touching failed files left by an earlier attempt
+   * to import them.
+   */
+  @Test
+  public void testStartImportsLeftoverFiles() throws Exception {
+    writer.addMutations(Arrays.asList(createMutation("a", "1"), createMutation("c", "2")));
+    writer.spill();
+    Path staged = writer.getStagingDir();
+    
+    // an earlier import of the same staging directory left a failed file behind
+    Path failures = new Path(new Path(workDir.toURI()), "failures-" + staged.getName().substring("bulk-".length()));
+    Path failed = new Path(failures, "failed.rf");
+    fs.mkdirs(failures);
+    fs.create(failed).close();
+    
+    MockImportBulkIngestWriter restarted = new MockImportBulkIngestWriter(conn, tableName, new Path(workDir.toURI()), Long.MAX_VALUE, Long.MAX_VALUE);
+    restarted.start();
+    
+    Assert.assertEquals(1, restarted.imports.size());
+    Assert.assertEquals(Arrays.asList("a", "c"), scanRows());
+    Assert.assertFalse(fs.exists(staged));
+    Assert.assertTrue(fs.exists(failed));
+  }
+}
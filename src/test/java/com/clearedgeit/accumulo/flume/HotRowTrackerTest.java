@@ -0,0 +1,63 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing to make sure the HotRowTracker finds the heavy hitters in a skewed stream of row IDs.
+ */
+
+public class HotRowTrackerTest {
+  
+  /**
+   * One row carries 40% of the traffic, the rest is spread over many more distinct rows than the tracker can hold.
+   */
+  @Test
+  public void testSkewedRows() {
+    HotRowTracker tracker = new HotRowTracker(10, 0);
+    for (int i = 0; i < 10000; i++) {
+      if (i % 5 < 2) {
+        tracker.offer("device42");
+      } else {
+        tracker.offer("row" + i);
+      }
+    }
+    
+    List<HotRowTracker.HotRow> top = tracker.getTopRows(3);
+    Assert.assertEquals(3, top.size());
+    Assert.assertEquals("device42", top.get(0).getRow());
+    Assert.assertTrue("share too low: " + top.get(0).getShare(), top.get(0).getShare() >= 0.3);
+    Assert.assertTrue(top.get(0).getCount() >= 4000);
+    
+    Assert.assertTrue(tracker.isHot("device42", 0.3, 1000));
+    Assert.assertFalse(tracker.isHot("device42", 0.3, 100000));
+    Assert.assertFalse(tracker.isHot("row9999", 0.3, 1000));
+  }
+  
+  /**
+   * Rows that stop being hot should age out once the window decays their counts.
+   */
+  @Test
+  public void testDecay() {
+    HotRowTracker tracker = new HotRowTracker(4, 100);
+    for (int i = 0; i < 100; i++) {
+      tracker.offer("old");
+    }
+    for (int i = 0; i < 1000; i++) {
+      tracker.offer("new" + (i % 2));
+    }
+    
+    Assert.assertFalse(tracker.isHot("old", 0.1, 0));
+    Assert.assertTrue(tracker.isHot("new0", 0.1, 0));
+    Assert.assertTrue(tracker.getTotal() < 200);
+  }
+  
+  @Test
+  public void testEmpty() {
+    HotRowTracker tracker = new HotRowTracker(4, 0);
+    Assert.assertTrue(tracker.getTopRows(10).isEmpty());
+    Assert.assertFalse(tracker.isHot("any", 0.0, 0));
+  }
+}
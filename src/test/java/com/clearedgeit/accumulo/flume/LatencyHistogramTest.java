@@ -0,0 +1,48 @@
+package com.clearedgeit.accumulo.flume;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing to make sure LatencyHistogram percentiles stay within the bucket precision.
+ */
+
+public class LatencyHistogramTest {
+  
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (long i = 1; i <= 10000; i++) {
+      histogram.record(i);
+    }
+    
+    Assert.assertEquals(10000, histogram.getCount());
+    Assert.assertEquals(1, histogram.getMin());
+    Assert.assertEquals(10000, histogram.getMax());
+    Assert.assertEquals(5000.5, histogram.getMean(), 0.001);
+    
+    assertWithin(5000, histogram.getPercentile(50));
+    assertWithin(9900, histogram.getPercentile(99));
+    Assert.assertEquals(10000, histogram.getPercentile(100));
+    Assert.assertEquals(1, histogram.getPercentile(0));
+  }
+  
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 0; i < 10; i++) {
+      histogram.record(3);
+    }
+    histogram.record(7);
+    Assert.assertEquals(3, histogram.getPercentile(50));
+    Assert.assertEquals(7, histogram.getPercentile(100));
+    
+    histogram.reset();
+    Assert.assertEquals(0, histogram.getCount());
+    Assert.assertEquals(0, histogram.getPercentile(50));
+  }
+  
+  private void assertWithin(long expected, long actual) {
+    Assert.assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * 0.07);
+  }
+}
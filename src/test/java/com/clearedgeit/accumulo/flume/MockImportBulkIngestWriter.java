@@ -0,0 +1,81 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.conf.AccumuloConfiguration;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.file.FileOperations;
+import org.apache.accumulo.core.file.FileSKVIterator;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * BulkIngestWriter that imports a directory by reading its RFiles and writing their entries to the table with a BatchWriter, since a MockInstance can't bulk
+ * import. It records the files handed to each import, and can be told to fail imports.
+ */
+
+public class MockImportBulkIngestWriter extends BulkIngestWriter {
+  
+  private final Connector conn;
+  private final String tableName;
+  
+  // sorted file names, one list per import
+  final List<List<String>> imports = new ArrayList<List<String>>();
+  boolean fail = false;
+  
+  public MockImportBulkIngestWriter(Connector conn, String tableName, Path workDir, long importIntervalMillis, long importBytes) throws IOException {
+    super(conn, tableName, workDir, importIntervalMillis, importBytes);
+    this.conn = conn;
+    this.tableName = tableName;
+  }
+  
+  @Override
+  void importFiles(Path dir, Path failures) throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    if (this.fail) {
+      throw new AccumuloException("import failed for testing");
+    }
+    
+    FileSystem fs = dir.getFileSystem(new Configuration());
+    List<String> names = new ArrayList<String>();
+    BatchWriter writer = this.conn.createBatchWriter(this.tableName, 1000000L, 1000L, 1);
+    try {
+      for (FileStatus status : fs.listStatus(dir)) {
+        names.add(status.getPath().getName());
+        FileSKVIterator reader = FileOperations.getInstance().openReader(status.getPath().toString(), true, fs, fs.getConf(),
+            AccumuloConfiguration.getDefaultConfiguration());
+        try {
+          while (reader.hasTop()) {
+            Key key = reader.getTopKey();
+            Mutation m = new Mutation(key.getRow());
+            ColumnVisibility cv = new ColumnVisibility(key.getColumnVisibility());
+            if (key.isDeleted()) {
+              m.putDelete(key.getColumnFamily(), key.getColumnQualifier(), cv, key.getTimestamp());
+            } else {
+              m.put(key.getColumnFamily(), key.getColumnQualifier(), cv, key.getTimestamp(), reader.getTopValue());
+            }
+            writer.addMutation(m);
+            reader.next();
+          }
+        } finally {
+          reader.close();
+        }
+      }
+    } finally {
+      writer.close();
+    }
+    Collections.sort(names);
+    this.imports.add(names);
+  }
+}
@@ -0,0 +1,140 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Testing to make sure the PackingAccumuloEventSerializer packs a batch of events into a few block values that decode back into the original events.
+ */
+
+public class PackingAccumuloEventSerializerTest {
+  
+  BatchAccumuloEventSerializer serializer;
+  
+  @Before
+  public void setUp() throws Exception {
+    Context context = new Context();
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_PACKING_BUCKET_MILLIS, "60000");
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_PACKING_SHARDS, "2");
+    serializer = new PackingAccumuloEventSerializer();
+    serializer.configure(context);
+  }
+  
+  @After
+  public void tearDown() throws Exception {
+    serializer.close();
+  }
+  
+  private Event createEvent(int i, String visibility) {
+    Map<String,String> headers = new HashMap<String,String>();
+    headers.put("timestamp", Long.toString(1360000000000L + i));
+    headers.put("seq", Integer.toString(i));
+    if (visibility != null) {
+      headers.put("columnVisibility", visibility);
+    }
+    return EventBuilder.withBody(("syslog message " + i).getBytes(), headers);
+  }
+  
+  /**
+   * Pack a batch of events and make sure each shard/visibility gets one block, and that every event can be decoded from the blocks.
+   */
+  @Test
+  public void testPackAndDecode() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      Event event = createEvent(i, i % 5 == 0 ? "secret" : null);
+      serializer.set(event);
+      Assert.assertTrue(serializer.getMutations().isEmpty());
+      // the event is left as is, so it can be redelivered after a rollback
+      Assert.assertEquals(i % 5 == 0, event.getHeaders().containsKey("columnVisibility"));
+    }
+    
+    List<Mutation> mutations = serializer.flush();
+    Assert.assertEquals(2, mutations.size());
+    
+    Set<String> seen = new HashSet<String>();
+    int blocks = 0;
+    for (Mutation m : mutations) {
+      String row = new String(m.getRow());
+      Assert.assertTrue("unexpected row: " + row, row.equals("1359999960000_0") || row.equals("1359999960000_1"));
+      
+      for (ColumnUpdate update : m.getUpdates()) {
+        blocks++;
+        String cv = new String(update.getColumnVisibility());
+        Assert.assertEquals("flume", new String(update.getColumnFamily()));
+        
+        Assert.assertEquals(PackedEventCodec.decode(update.getValue()).size(), PackedEventCodec.count(update.getValue()));
+        for (Event event : PackedEventCodec.decode(update.getValue())) {
+          int seq = Integer.parseInt(event.getHeaders().get("seq"));
+          Assert.assertEquals("syslog message " + seq, new String(event.getBody()));
+          Assert.assertEquals(seq % 5 == 0 ? "secret" : "", cv);
+          Assert.assertFalse(event.getHeaders().containsKey("columnVisibility"));
+          Assert.assertTrue("duplicate event " + seq, seen.add(event.getHeaders().get("seq")));
+        }
+      }
+    }
+    
+    // two shards, each with a public and a secret block
+    Assert.assertEquals(4, blocks);
+    Assert.assertEquals(100, seen.size());
+    
+    // everything was flushed, so the next batch starts empty
+    Assert.assertTrue(serializer.flush().isEmpty());
+  }
+  
+  /**
+   * Blocks that reach maxBlockBytes should be split.
+   */
+  @Test
+  public void testMaxBlockBytes() throws Exception {
+    Context context = new Context();
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_PACKING_SHARDS, "1");
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_PACKING_MAX_BLOCK_BYTES, "1000");
+    serializer.configure(context);
+    
+    for (int i = 0; i < 100; i++) {
+      serializer.set(createEvent(i, null));
+    }
+    
+    List<Mutation> mutations = serializer.flush();
+    Assert.assertEquals(1, mutations.size());
+    
+    int events = 0;
+    List<ColumnUpdate> updates = mutations.get(0).getUpdates();
+    Assert.assertTrue(updates.size() > 1);
+    for (ColumnUpdate update : updates) {
+      events += PackedEventCodec.count(update.getValue());
+    }
+    Assert.assertEquals(100, events);
+  }
+  
+  /**
+   * The event time of each event is reported once event time extraction is configured.
+   */
+  @Test
+  public void testEventTime() throws Exception {
+    PackingAccumuloEventSerializer packing = (PackingAccumuloEventSerializer) serializer;
+    packing.set(createEvent(1, null));
+    Assert.assertNull(packing.getEventTime());
+    
+    Context context = new Context();
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_HEADER, "timestamp");
+    packing.configure(context);
+    packing.set(createEvent(1, null));
+    Assert.assertEquals(Long.valueOf(1360000000001L), packing.getEventTime());
+    packing.set(EventBuilder.withBody("no time".getBytes()));
+    Assert.assertNull(packing.getEventTime());
+  }
+}
@@ -0,0 +1,76 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ * Measures single threaded parse throughput of the SchemaAccumuloEventSerializer, which is the throughput per core. Run with
+ * 
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=com.clearedgeit.accumulo.flume.SchemaAccumuloEventSerializerBenchmark
+ * </pre>
+ */
+
+public class SchemaAccumuloEventSerializerBenchmark {
+  
+  private static final int EVENTS = 10000;
+  private static final int WARMUP_ROUNDS = 20;
+  private static final int ROUNDS = 50;
+  
+  public static void main(String[] args) {
+    run("delimited", "time,host,level,pid,msg");
+    run("json", "time,host,level,pid,msg");
+  }
+  
+  private static void run(String format, String fields) {
+    Context context = new Context();
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FORMAT, format);
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FIELDS, fields);
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_ROW_ID, "host,time");
+    SchemaAccumuloEventSerializer serializer = new SchemaAccumuloEventSerializer();
+    serializer.configure(context);
+    
+    List<Event> events = new ArrayList<Event>(EVENTS);
+    long bytes = 0;
+    for (int i = 0; i < EVENTS; i++) {
+      long time = 1360000000000L + i;
+      String host = "host" + (i % 50);
+      String msg = "connection from 10.0.0." + (i % 255) + " closed after " + (i % 1000) + "ms";
+      String body;
+      if (format.equals("json")) {
+        body = "{\"time\": " + time + ", \"host\": \"" + host + "\", \"level\": \"INFO\", \"pid\": " + (i % 30000) + ", \"msg\": \"" + msg + "\"}";
+      } else {
+        body = time + "," + host + ",INFO," + (i % 30000) + "," + msg;
+      }
+      events.add(EventBuilder.withBody(body.getBytes()));
+      bytes += body.length();
+    }
+    
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      parse(serializer, events);
+    }
+    
+    long start = System.nanoTime();
+    long mutations = 0;
+    for (int round = 0; round < ROUNDS; round++) {
+      mutations += parse(serializer, events);
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    
+    System.out.println(String.format("%-10s %,12.0f events/s/core %8.1f MB/s/core (%d mutations)", format, EVENTS * (double) ROUNDS / seconds, bytes
+        * (double) ROUNDS / seconds / (1024 * 1024), mutations));
+  }
+  
+  private static long parse(SchemaAccumuloEventSerializer serializer, List<Event> events) {
+    long mutations = 0;
+    for (Event event : events) {
+      serializer.set(event);
+      mutations += serializer.getMutations().size();
+    }
+    return mutations;
+  }
+}
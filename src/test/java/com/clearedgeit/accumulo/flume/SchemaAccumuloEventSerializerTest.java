@@ -0,0 +1,158 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Testing to make sure the SchemaAccumuloEventSerializer maps delimited and JSON fields to the right columns, and reports bad records without failing.
+ */
+
+public class SchemaAccumuloEventSerializerTest {
+  
+  private SchemaAccumuloEventSerializer createSerializer(String format, String fields) {
+    Context context = new Context();
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FORMAT, format);
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_FIELDS, fields);
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_ROW_ID, "host,time");
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_COLUMN_PREFIX + "msg", "log:message");
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_SCHEMA_ERROR_COLUMN_FAMILY, "error");
+    SchemaAccumuloEventSerializer serializer = new SchemaAccumuloEventSerializer();
+    serializer.configure(context);
+    return serializer;
+  }
+  
+  private Map<String,String> getColumns(Mutation m) {
+    Map<String,String> columns = new HashMap<String,String>();
+    for (ColumnUpdate update : m.getUpdates()) {
+      columns.put(new String(update.getColumnFamily()) + ":" + new String(update.getColumnQualifier()), new String(update.getValue(), Charsets.UTF_8));
+    }
+    return columns;
+  }
+  
+  @Test
+  public void testDelimited() {
+    SchemaAccumuloEventSerializer serializer = createSerializer("delimited", "time,host,level,msg");
+    serializer.set(EventBuilder.withBody("1360000000000,host1,WARN,disk full\n".getBytes()));
+    List<Mutation> mutations = serializer.getMutations();
+    
+    Assert.assertEquals(1, mutations.size());
+    Assert.assertEquals("host1_1360000000000", new String(mutations.get(0).getRow()));
+    Map<String,String> columns = getColumns(mutations.get(0));
+    Assert.assertEquals(4, columns.size());
+    Assert.assertEquals("1360000000000", columns.get("flume:time"));
+    Assert.assertEquals("host1", columns.get("flume:host"));
+    Assert.assertEquals("WARN", columns.get("flume:level"));
+    Assert.assertEquals("disk full", columns.get("log:message"));
+  }
+  
+  /**
+   * Delimiters past the last declared field belong to the last field, and a line with too few fields is a bad record.
+   */
+  @Test
+  public void testDelimitedRemainder() {
+    SchemaAccumuloEventSerializer serializer = createSerializer("delimited", "time,host,level,msg");
+    serializer.set(EventBuilder.withBody("1360000000000,host1,WARN,disk full, retrying,\n".getBytes()));
+    Map<String,String> columns = getColumns(serializer.getMutations().get(0));
+    Assert.assertEquals("WARN", columns.get("flume:level"));
+    Assert.assertEquals("disk full, retrying,", columns.get("log:message"));
+    
+    serializer.set(EventBuilder.withBody("1360000000000,host1,WARN".getBytes()));
+    columns = getColumns(serializer.getMutations().get(0));
+    Assert.assertEquals("1360000000000,host1,WARN", columns.get("error:body"));
+    Assert.assertEquals(1, serializer.getBadRecordCount());
+  }
+  
+  @Test
+  public void testJson() {
+    SchemaAccumuloEventSerializer serializer = createSerializer("json", "time,host,msg,tags");
+    String body = "{ \"host\" : \"host1\", \"unmapped\": {\"a\": [1, \"}\"]}, \"time\": 1360000000000,"
+        + " \"msg\": \"say \\\"hi\\\" \\u00e9\", \"tags\": [\"a\", \"b\"] }";
+    Map<String,String> headers = new HashMap<String,String>();
+    headers.put("columnVisibility", "public");
+    Event event = EventBuilder.withBody(body.getBytes(), headers);
+    serializer.set(event);
+    List<Mutation> mutations = serializer.getMutations();
+    
+    Assert.assertEquals(1, mutations.size());
+    Assert.assertEquals("host1_1360000000000", new String(mutations.get(0).getRow()));
+    Map<String,String> columns = getColumns(mutations.get(0));
+    Assert.assertEquals(4, columns.size());
+    Assert.assertEquals("1360000000000", columns.get("flume:time"));
+    Assert.assertEquals("say \"hi\" \u00e9", columns.get("log:message"));
+    Assert.assertEquals("[\"a\", \"b\"]", columns.get("flume:tags"));
+    for (ColumnUpdate update : mutations.get(0).getUpdates()) {
+      Assert.assertEquals("public", new String(update.getColumnVisibility()));
+    }
+  }
+  
+  /**
+   * Bad records should be counted and written to the error column family, and the next record should still parse.
+   */
+  @Test
+  public void testBadRecords() {
+    SchemaAccumuloEventSerializer serializer = createSerializer("json", "time,host,msg");
+    
+    String[] bad = {"not json", "{\"host\": \"host1\"", "{\"host\": \"host1\", \"msg\": \"no time\"}", "{\"host\": }",
+        "{\"host\": \"host1\", \"time\": abc}", "{\"host\": \"host1\", \"time\": 012}", "{\"host\": \"host1\", \"time\": 1., \"msg\": tru}",
+        "{\"host\": \"host1\", \"time\": null}", "{\"host\": \"h\", \"time\": 1, \"msg\": \"\\u-001\"}",
+        "{\"host\": \"h\", \"time\": 1, \"msg\": \"\\u+0ff\"}", "{\"host\": \"h\", \"time\": 1, \"msg\": \"\\x\"}"};
+    for (String body : bad) {
+      serializer.set(EventBuilder.withBody(body.getBytes()));
+      List<Mutation> mutations = serializer.getMutations();
+      Assert.assertEquals(1, mutations.size());
+      Map<String,String> columns = getColumns(mutations.get(0));
+      Assert.assertEquals(body, columns.get("error:body"));
+    }
+    Assert.assertEquals(bad.length, serializer.getBadRecordCount());
+    
+    // the sink publishes the count over JMX
+    AccumuloSinkMetrics metrics = new AccumuloSinkMetrics("schema-test", 10);
+    metrics.setSchemaSerializer(serializer);
+    Assert.assertEquals(bad.length, metrics.getBadRecordCount());
+    
+    serializer.set(EventBuilder.withBody("{\"host\": \"host2\", \"time\": 5}".getBytes()));
+    List<Mutation> mutations = serializer.getMutations();
+    Assert.assertEquals("host2_5", new String(mutations.get(0).getRow()));
+    Assert.assertEquals(bad.length, serializer.getBadRecordCount());
+  }
+  
+  /**
+   * Valid escapes are decoded, including surrogate pairs.
+   */
+  @Test
+  public void testJsonEscapes() {
+    SchemaAccumuloEventSerializer serializer = createSerializer("json", "time,host,msg");
+    serializer.set(EventBuilder.withBody("{\"host\": \"h\", \"time\": 1, \"msg\": \"a\\\"b\\\\c\\/d\\te\\u00E9\\ud83d\\ude00\"}".getBytes()));
+    List<Mutation> mutations = serializer.getMutations();
+    Map<String,String> columns = getColumns(mutations.get(0));
+    Assert.assertEquals("a\"b\\c/d\te\u00e9\ud83d\ude00", columns.get("log:message"));
+    Assert.assertEquals(0, serializer.getBadRecordCount());
+  }
+  
+  /**
+   * Numbers and the true, false and null literals are accepted, with null treated as a missing value.
+   */
+  @Test
+  public void testJsonLiterals() {
+    SchemaAccumuloEventSerializer serializer = createSerializer("json", "time,host,msg,tags");
+    serializer.set(EventBuilder.withBody("{\"host\": \"h\", \"time\": -1.5e+3, \"msg\": null, \"tags\": false}".getBytes()));
+    List<Mutation> mutations = serializer.getMutations();
+    Assert.assertEquals("h_-1.5e+3", new String(mutations.get(0).getRow()));
+    Map<String,String> columns = getColumns(mutations.get(0));
+    Assert.assertEquals(3, columns.size());
+    Assert.assertEquals("false", columns.get("flume:tags"));
+    Assert.assertNull(columns.get("log:message"));
+    Assert.assertEquals(0, serializer.getBadRecordCount());
+  }
+}
@@ -9,6 +9,7 @@ import java.util.UUID;
 
 import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Mutation;
+import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.event.EventBuilder;
 import org.junit.After;
@@ -203,4 +204,44 @@ public class SimpleAccumuloEventSerializerTest {
       }
     }
   }
+  
+  /**
+   * Tests that the event time from the configured header, or the body pattern when the header is missing, is set on every key.
+   */
+  @Test
+  public void testEventTimestamp() {
+    Context context = new Context();
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_HEADER, "eventTime");
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_PATTERN, "^(\\S+ \\S+)");
+    context.put(AccumuloSinkConfigurationConstants.CONFIG_TIMESTAMP_FORMAT, "yyyy-MM-dd HH:mm:ss");
+    serializer.configure(context);
+    
+    Map<String,String> headers = new HashMap<String,String>();
+    headers.put("eventTime", "2013-02-01 12:00:00");
+    headers.put("host", "host1");
+    serializer.set(EventBuilder.withBody("2013-02-01 13:00:00 message".getBytes(), headers));
+    List<Mutation> mutations = serializer.getMutations();
+    Assert.assertEquals(1, mutations.size());
+    
+    long headerTime = new EventTimestampExtractor(context).parse("2013-02-01 12:00:00");
+    Assert.assertEquals(3, mutations.get(0).getUpdates().size());
+    for (ColumnUpdate update : mutations.get(0).getUpdates()) {
+      Assert.assertTrue(update.hasTimestamp());
+      Assert.assertEquals(headerTime, update.getTimestamp());
+    }
+    
+    // no header, so the time comes from the body
+    serializer.set(EventBuilder.withBody("2013-02-01 13:00:00 message".getBytes()));
+    mutations = serializer.getMutations();
+    for (ColumnUpdate update : mutations.get(0).getUpdates()) {
+      Assert.assertEquals(headerTime + 3600000L, update.getTimestamp());
+    }
+    
+    // nothing to extract, so the tablet server will set the time
+    serializer.set(EventBuilder.withBody("message".getBytes()));
+    mutations = serializer.getMutations();
+    for (ColumnUpdate update : mutations.get(0).getUpdates()) {
+      Assert.assertFalse(update.hasTimestamp());
+    }
+  }
 }
@@ -0,0 +1,106 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.data.Mutation;
+
+/**
+ * BatchWriter stand-in for tests and the load harness. Mutations are held until flush() or close(), then passed on to a delegate writer, or dropped if there
+ * is none. addMutations() can be made to block for a fixed time, like a writer whose memory is full.
+ */
+
+public class StubBatchWriter implements BatchWriter {
+  
+  private final long maxMemory;
+  private final BatchWriter delegate;
+  private volatile long blockMillis = 0;
+  
+  private List<Mutation> held = new ArrayList<Mutation>();
+  private long added = 0;
+  private long flushed = 0;
+  private boolean closed = false;
+  
+  public StubBatchWriter(long maxMemory) {
+    this(maxMemory, null);
+  }
+  
+  public StubBatchWriter(long maxMemory, BatchWriter delegate) {
+    this.maxMemory = maxMemory;
+    this.delegate = delegate;
+  }
+  
+  public void setBlockMillis(long blockMillis) {
+    this.blockMillis = blockMillis;
+  }
+  
+  @Override
+  public void addMutation(Mutation m) throws MutationsRejectedException {
+    checkOpen();
+    this.added++;
+    if (this.delegate != null) {
+      this.held.add(m);
+    }
+  }
+  
+  @Override
+  public void addMutations(Iterable<Mutation> iterable) throws MutationsRejectedException {
+    if (this.blockMillis > 0) {
+      try {
+        Thread.sleep(this.blockMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    for (Mutation m : iterable) {
+      addMutation(m);
+    }
+  }
+  
+  @Override
+  public void flush() throws MutationsRejectedException {
+    checkOpen();
+    if (this.delegate != null) {
+      this.delegate.addMutations(this.held);
+      this.delegate.flush();
+      this.held = new ArrayList<Mutation>();
+    }
+    this.flushed = this.added;
+  }
+  
+  @Override
+  public void close() throws MutationsRejectedException {
+    flush();
+    this.closed = true;
+    if (this.delegate != null) {
+      this.delegate.close();
+    }
+  }
+  
+  private void checkOpen() {
+    if (this.closed) {
+      throw new IllegalStateException("writer is closed");
+    }
+  }
+  
+  public long getMaxMemory() {
+    return this.maxMemory;
+  }
+  
+  public long getAddedCount() {
+    return this.added;
+  }
+  
+  /**
+   * @return the number of mutations added before the last flush or close
+   */
+  public long getFlushedCount() {
+    return this.flushed;
+  }
+  
+  public boolean isClosed() {
+    return this.closed;
+  }
+}
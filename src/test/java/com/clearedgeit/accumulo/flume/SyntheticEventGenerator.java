@@ -0,0 +1,100 @@
+package com.clearedgeit.accumulo.flume;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.flume.Context;
+import org.apache.flume.Event;
+import org.apache.flume.event.EventBuilder;
+
+/**
+ * Generates reproducible synthetic events for load testing the AccumuloSink.
+ *
+ * Configured from a Context:
+ * <ul>
+ * <li>bodySizes - comma separated list of size:weight pairs for the body size mix, e.g. "100:80,1000:15,10000:5"</li>
+ * <li>headerCount - number of extra headers per event</li>
+ * <li>visibilities - number of distinct columnVisibility values, 0 for none</li>
+ * <li>rowIds - number of distinct rowID header values, 0 to leave rowID unset so the serializer picks one</li>
+ * <li>hotRowShare - share of events (0.0 - 1.0) that use the single hot rowID</li>
+ * <li>seed - random seed, so runs with the same configuration generate the same events</li>
+ * </ul>
+ */
+
+public class SyntheticEventGenerator {
+  
+  private final Random random;
+  private final int[] bodySizes;
+  private final int[] cumulativeWeights;
+  private final int headerCount;
+  private final String[] visibilities;
+  private final int rowIds;
+  private final double hotRowShare;
+  private final byte[] filler;
+  
+  public SyntheticEventGenerator(Context context) {
+    this.random = new Random(context.getLong("seed", 42L));
+    
+    String[] sizes = context.getString("bodySizes", "200:1").split(",");
+    this.bodySizes = new int[sizes.length];
+    this.cumulativeWeights = new int[sizes.length];
+    int total = 0;
+    int maxSize = 0;
+    for (int i = 0; i < sizes.length; i++) {
+      String[] pair = sizes[i].trim().split(":");
+      this.bodySizes[i] = Integer.parseInt(pair[0]);
+      total += pair.length > 1 ? Integer.parseInt(pair[1]) : 1;
+      this.cumulativeWeights[i] = total;
+      maxSize = Math.max(maxSize, this.bodySizes[i]);
+    }
+    
+    this.headerCount = context.getInteger("headerCount", 2);
+    
+    int visibilityCount = context.getInteger("visibilities", 0);
+    this.visibilities = new String[visibilityCount];
+    for (int i = 0; i < visibilityCount; i++) {
+      this.visibilities[i] = "group" + i + "|admin";
+    }
+    
+    this.rowIds = context.getInteger("rowIds", 0);
+    this.hotRowShare = Double.parseDouble(context.getString("hotRowShare", "0.0"));
+    
+    // printable filler the bodies are cut from
+    this.filler = new byte[maxSize];
+    for (int i = 0; i < maxSize; i++) {
+      this.filler[i] = (byte) ('a' + random.nextInt(26));
+    }
+  }
+  
+  public Event next() {
+    int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+    int size = bodySizes[bodySizes.length - 1];
+    for (int i = 0; i < cumulativeWeights.length; i++) {
+      if (pick < cumulativeWeights[i]) {
+        size = bodySizes[i];
+        break;
+      }
+    }
+    byte[] body = new byte[size];
+    int offset = size == filler.length ? 0 : random.nextInt(filler.length - size + 1);
+    System.arraycopy(filler, offset, body, 0, size);
+    
+    Map<String,String> headers = new HashMap<String,String>();
+    headers.put("timestamp", Long.toString(System.currentTimeMillis()));
+    for (int i = 0; i < headerCount; i++) {
+      headers.put("header" + i, "value" + random.nextInt(1000));
+    }
+    if (visibilities.length > 0) {
+      headers.put("columnVisibility", visibilities[random.nextInt(visibilities.length)]);
+    }
+    if (rowIds > 0) {
+      if (random.nextDouble() < hotRowShare) {
+        headers.put("rowID", "row-hot");
+      } else {
+        headers.put("rowID", "row-" + random.nextInt(rowIds));
+      }
+    }
+    return EventBuilder.withBody(body, headers);
+  }
+}
@@ -0,0 +1,102 @@
+package com.clearedgeit.accumulo.flume;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Testing to make sure the WriterMemoryController throttles as the writer fills up and resizes the budget to match throughput.
+ */
+
+public class WriterMemoryControllerTest {
+  
+  @Test
+  public void testThrottle() {
+    WriterMemoryController controller = new WriterMemoryController(1000, 1000, 1000, 1000, false, 0.8, 100);
+    long now = 100000;
+    
+    // the writer blocked for 20ms of the last maxLatency
+    controller.recordAdd(500, 20000000L, now);
+    Assert.assertEquals(0, controller.throttleMillis(now));
+    
+    // 90% full is half way between the threshold and full
+    controller.recordAdd(400, 0, now);
+    Assert.assertEquals(50, controller.throttleMillis(now));
+    
+    // over budget pauses for the longest time
+    controller.recordAdd(400, 0, now);
+    Assert.assertEquals(100, controller.throttleMillis(now));
+    
+    // the writer has flushed everything after maxLatency
+    Assert.assertEquals(0, controller.throttleMillis(now + 1000));
+  }
+  
+  /**
+   * A full window of bytes alone doesn't mean the writer is full, and a maxThrottle of 0 turns throttling off.
+   */
+  @Test
+  public void testNoThrottleWithoutBlocking() {
+    long now = 100000;
+    WriterMemoryController controller = new WriterMemoryController(1000, 1000, 1000, 1000, false, 0.8, 100);
+    controller.recordAdd(2000, 1000000L, now);
+    Assert.assertEquals(0, controller.throttleMillis(now));
+    
+    WriterMemoryController disabled = new WriterMemoryController(1000, 1000, 1000, 1000, false, 0.8, 0);
+    disabled.recordAdd(2000, 500000000L, now);
+    Assert.assertEquals(0, disabled.throttleMillis(now));
+  }
+  
+  @Test
+  public void testBlockedTime() {
+    WriterMemoryController controller = new WriterMemoryController(1000, 1000, 1000, 1000, false, 0.8, 100);
+    controller.recordAdd(100, 3000000L, 100000);
+    controller.recordAdd(100, 2000000L, 100001);
+    controller.recordThrottle(7);
+    Assert.assertEquals(5, controller.getBlockedMillis());
+    Assert.assertEquals(7, controller.getThrottledMillis());
+  }
+  
+  @Test
+  public void testGrowsWithThroughput() {
+    WriterMemoryController controller = new WriterMemoryController(10000, 10000, 1000000, 1000, true, 0.8, 100);
+    long now = 100000;
+    
+    // 100KB/s for a rate window
+    for (int i = 0; i <= 100; i++) {
+      controller.recordAdd(10000, 0, now + i * 100);
+    }
+    Assert.assertEquals(100000.0, controller.getThroughput(), 2000.0);
+    
+    // two maxLatency's worth of data at the observed throughput
+    long target = controller.targetBudget();
+    Assert.assertTrue("unexpected target " + target, target > 190000 && target < 210000);
+    Assert.assertTrue(controller.shouldResize(now + 10000));
+    
+    controller.resized(target, now + 10000);
+    Assert.assertEquals(target, controller.getBudget());
+    Assert.assertFalse(controller.shouldResize(now + 10001));
+  }
+  
+  @Test
+  public void testGrowsWhenBlocked() {
+    WriterMemoryController controller = new WriterMemoryController(10000, 10000, 15000, 1000, true, 0.8, 100);
+    long now = 100000;
+    
+    // very little throughput, but blocked for 20% of the time
+    controller.recordAdd(10, 1000000000L, now);
+    controller.recordAdd(10, 1000000000L, now + 10000);
+    
+    // doubling is capped at the maximum budget
+    Assert.assertEquals(15000, controller.targetBudget());
+    Assert.assertTrue(controller.shouldResize(now + 10000));
+  }
+  
+  @Test
+  public void testFixedBudget() {
+    WriterMemoryController controller = new WriterMemoryController(10000, 10000, 1000000, 1000, false, 0.8, 100);
+    for (int i = 0; i <= 100; i++) {
+      controller.recordAdd(10000, 0, 100000 + i * 100);
+    }
+    Assert.assertFalse(controller.shouldResize(200000));
+    Assert.assertEquals(10000, controller.getBudget());
+  }
+}